@@ -5,8 +5,12 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -15,6 +19,10 @@ import java.util.logging.Logger;
  * those first that may be more likely to connect based on previous error
  * reports (if more than one IP/port is available).
  * 
+ * Also keeps the measured connect times of addresses, so that the fastest
+ * addresses can be tried first. These can be saved and loaded, so they are
+ * available on the next start.
+ * 
  * @author tduva
  */
 public class AddressManager {
@@ -29,6 +37,12 @@ public class AddressManager {
      */
     private final Set<InetSocketAddress> errors = new HashSet<>();
     
+    /**
+     * Measured connect times (in milliseconds) of addresses, with the
+     * "ip:port" as key.
+     */
+    private final Map<String, Long> connectTimes = new HashMap<>();
+    
     /**
      * Gets an {@code InetSocketAddress} based on the given host (a single host)
      * and the list of ports (one or several comma-seperated ports). It uses the
@@ -43,33 +57,118 @@ public class AddressManager {
      * @throws java.net.UnknownHostException If the host could not be resolved
      */
     public InetSocketAddress getAddress(String host, String portsString) throws UnknownHostException {
+        List<InetSocketAddress> addresses = getAddresses(host, portsString, 1);
+        if (addresses.isEmpty()) {
+            return null;
+        }
+        return addresses.get(0);
+    }
+    
+    /**
+     * Gets several {@code InetSocketAddress} objects based on the given host
+     * and the list of ports, to connect to at the same time. Addresses that
+     * have been connected to before are sorted by their measured connect
+     * time, followed by addresses that haven't been tried yet, followed by
+     * addresses that had errors.
+     * 
+     * @param host The host to connect to.
+     * @param portsString The port(s) to connect to.
+     * @param max The maximum number of addresses to return
+     * @return The list of addresses, which is empty if either the host or
+     * ports are invalid
+     * @throws UnknownHostException If the host could not be resolved
+     */
+    public synchronized List<InetSocketAddress> getAddresses(String host,
+            String portsString, int max) throws UnknownHostException {
+        List<InetSocketAddress> result = new ArrayList<>();
         List<Integer> ports = parsePorts(portsString);
         if (ports.isEmpty()) {
             LOGGER.warning("No port to connect to found: "+portsString);
-            return null;
+            return result;
         }
         if (host == null || host.isEmpty()) {
             LOGGER.warning("No host to connect to provided.");
-            return null;
+            return result;
         }
         InetAddress[] ips = InetAddress.getAllByName(host);
 
         // For testing
         //ips = InetAddress.getAllByName("199.9.250.239");
-        // Try to find a socket address that isn't in the error list
-        Set<InetSocketAddress> tried = new HashSet<>();
+        List<InetSocketAddress> measured = new ArrayList<>();
+        List<InetSocketAddress> unknown = new ArrayList<>();
+        List<InetSocketAddress> failed = new ArrayList<>();
         for (InetAddress ip : ips) {
             for (int port : ports) {
                 InetSocketAddress address = new InetSocketAddress(ip, port);
-                if (!errors.contains(address)) {
-                    return address;
+                if (errors.contains(address)) {
+                    failed.add(address);
+                } else if (connectTimes.containsKey(makeKey(address))) {
+                    measured.add(address);
+                } else {
+                    unknown.add(address);
                 }
-                tried.add(address);
             }
         }
-        LOGGER.info("Tried all available sockets.. trying from the start.");
-        clearErrorsForAddresses(tried);
-        return tried.iterator().next();
+        if (measured.isEmpty() && unknown.isEmpty()) {
+            LOGGER.info("Tried all available sockets.. trying from the start.");
+            clearErrorsForAddresses(new HashSet<>(failed));
+        }
+        Collections.sort(measured, new Comparator<InetSocketAddress>() {
+
+            @Override
+            public int compare(InetSocketAddress o1, InetSocketAddress o2) {
+                return connectTimes.get(makeKey(o1)).compareTo(connectTimes.get(makeKey(o2)));
+            }
+        });
+        result.addAll(measured);
+        result.addAll(unknown);
+        result.addAll(failed);
+        if (result.size() > max) {
+            return new ArrayList<>(result.subList(0, max));
+        }
+        return result;
+    }
+    
+    /**
+     * Adds the time it took to connect to the given address, which is
+     * averaged with previously measured times. A successful connect also
+     * removes the address from the errors.
+     * 
+     * @param address The address that was connected to
+     * @param time The connect time in milliseconds
+     */
+    public synchronized void addConnectTime(InetSocketAddress address, long time) {
+        String key = makeKey(address);
+        Long previous = connectTimes.get(key);
+        if (previous != null) {
+            time = (previous + time) / 2;
+        }
+        connectTimes.put(key, time);
+        errors.remove(address);
+    }
+    
+    /**
+     * Gets the measured connect times, with "ip:port" as key.
+     * 
+     * @return A copy of the connect times
+     */
+    public synchronized Map<String, Long> getConnectTimes() {
+        return new HashMap<>(connectTimes);
+    }
+    
+    /**
+     * Sets previously saved connect times.
+     * 
+     * @param times A {@code Map} with "ip:port" as key and the connect time in
+     * milliseconds as value
+     */
+    public synchronized void setConnectTimes(Map<String, Long> times) {
+        connectTimes.clear();
+        connectTimes.putAll(times);
+    }
+    
+    private static String makeKey(InetSocketAddress address) {
+        return address.getAddress().getHostAddress()+":"+address.getPort();
     }
     
     /**
@@ -78,7 +177,7 @@ public class AddressManager {
      * 
      * @param address 
      */
-    public void addError(InetSocketAddress address) {
+    public synchronized void addError(InetSocketAddress address) {
         errors.add(address);
     }
     
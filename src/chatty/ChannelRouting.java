@@ -0,0 +1,173 @@
+
+package chatty;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of which channel is joined on which connection, and decides
+ * which connection a newly joined channel should use, based on the number of
+ * channels allowed per connection.
+ *
+ * This only does the bookkeeping and isn't thread-safe, so access has to be
+ * synchronized by the caller.
+ *
+ * @author tduva
+ */
+public class ChannelRouting {
+
+    private final Map<String, Connection> channels = new HashMap<>();
+    private final Map<Connection, Set<String>> connections = new LinkedHashMap<>();
+
+    /**
+     * How many channels should be joined per connection, 0 or less for no
+     * limit (all channels on a single connection).
+     */
+    private int channelsPerConnection;
+
+    public void setChannelsPerConnection(int channelsPerConnection) {
+        this.channelsPerConnection = channelsPerConnection;
+    }
+
+    public int getChannelsPerConnection() {
+        return channelsPerConnection;
+    }
+
+    /**
+     * Adds a connection that channels can be assigned to.
+     *
+     * @param connection
+     */
+    public void addConnection(Connection connection) {
+        if (!connections.containsKey(connection)) {
+            connections.put(connection, new HashSet<String>());
+        }
+    }
+
+    /**
+     * Removes a connection, so no channels are assigned to it anymore.
+     *
+     * @param connection
+     * @return The channels that were assigned to the connection, or an empty
+     * set if the connection wasn't added
+     */
+    public Set<String> removeConnection(Connection connection) {
+        Set<String> removed = connections.remove(connection);
+        if (removed == null) {
+            return Collections.emptySet();
+        }
+        for (String channel : removed) {
+            channels.remove(channel);
+        }
+        return removed;
+    }
+
+    public boolean hasConnection(Connection connection) {
+        return connections.containsKey(connection);
+    }
+
+    public Set<Connection> getConnections() {
+        return Collections.unmodifiableSet(connections.keySet());
+    }
+
+    /**
+     * Gets the channels assigned to the given connection.
+     *
+     * @param connection
+     * @return A copy of the set of channels
+     */
+    public Set<String> getChannels(Connection connection) {
+        Set<String> result = connections.get(connection);
+        if (result == null) {
+            return new HashSet<>();
+        }
+        return new HashSet<>(result);
+    }
+
+    /**
+     * Gets the connection the given channel is assigned to.
+     *
+     * @param channel
+     * @return The {@code Connection} or {@code null} if the channel isn't
+     * assigned
+     */
+    public Connection getConnection(String channel) {
+        return channels.get(channel);
+    }
+
+    /**
+     * Finds the connection a channel should be joined on. If the channel is
+     * already assigned, then that connection is returned. Otherwise it is the
+     * connection with the least channels that still has room (with the first
+     * added connection preferred if equal).
+     *
+     * @param channel
+     * @return The {@code Connection}, or {@code null} if no connection has
+     * room, so a new one should be opened
+     */
+    public Connection findConnection(String channel) {
+        Connection current = channels.get(channel);
+        if (current != null) {
+            return current;
+        }
+        Connection best = null;
+        int bestCount = Integer.MAX_VALUE;
+        for (Map.Entry<Connection, Set<String>> entry : connections.entrySet()) {
+            int count = entry.getValue().size();
+            if (channelsPerConnection <= 0) {
+                return entry.getKey();
+            }
+            if (count < channelsPerConnection && count < bestCount) {
+                best = entry.getKey();
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Assigns the channel to the connection (which is added if necessary),
+     * removing it from any other connection.
+     *
+     * @param channel
+     * @param connection
+     */
+    public void assign(String channel, Connection connection) {
+        unassign(channel);
+        addConnection(connection);
+        connections.get(connection).add(channel);
+        channels.put(channel, connection);
+    }
+
+    /**
+     * Removes the channel from the connection it was assigned to.
+     *
+     * @param channel
+     * @return The connection the channel was assigned to, or {@code null}
+     */
+    public Connection unassign(String channel) {
+        Connection connection = channels.remove(channel);
+        if (connection != null) {
+            connections.get(connection).remove(channel);
+        }
+        return connection;
+    }
+
+    public int getChannelCount(Connection connection) {
+        Set<String> assigned = connections.get(connection);
+        return assigned == null ? 0 : assigned.size();
+    }
+
+    /**
+     * Removes all connections and channels.
+     */
+    public void clear() {
+        channels.clear();
+        connections.clear();
+    }
+
+}
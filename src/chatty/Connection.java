@@ -1,171 +1,343 @@
 
 package chatty;
 
-import chatty.util.TimedCounter;
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
 import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 /**
  * A single connection to a server that can receive and send data.
- * 
+ *
+ * The connection doesn't have a thread of its own, but is driven by a
+ * {@code ConnectionEngine}, which calls the package-private methods from the
+ * engine thread.
+ *
  * @author tduva
  */
-public class Connection implements Runnable {
+public class Connection {
 
     private static final Logger LOGGER = Logger.getLogger(Connection.class.getName());
-    
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
     private final InetSocketAddress address;
     private final Irc irc;
-    
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
-    private boolean connected = false;
+    private final ConnectionEngine engine;
 
-    private int connectionCheckedCount;
-    
-    private static final int ACTIVITY_STATS_INTERVAL = 60*1000;
-    private static final int ACTIVITY_STATS_ACCURACY = 5*1000;
-    private final TimedCounter activityStats = new TimedCounter(ACTIVITY_STATS_INTERVAL,
-            ACTIVITY_STATS_ACCURACY);
+    private final IrcLineDecoder decoder = new IrcLineDecoder(CHARSET);
+
+    /**
+     * Lines that have been sent, but not written to the socket yet.
+     */
+    private final OutboundQueue outgoing = new OutboundQueue();
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private volatile boolean connected = false;
+    private volatile boolean registered = false;
+
+    private long connectTimeout;
+    private long openedAt;
+    private volatile long connectTime = -1;
     
+    /**
+     * Round-trip latencies measured with PINGs.
+     */
+    private final LatencyStats latency = new LatencyStats();
+    private long nextPing;
+    private long pingSent;
+    private String pingToken;
+
     private static final int CONNECT_TIMEOUT = 10*1000; // 10 seconds timeout
-    private static final int SOCKET_BLOCK_TIMEOUT = 10*1000; // 10 seconds
-    private static final int CHECK_CONNECTION_TIMEOUT = 5*60*1000; // 5 minutes
-    
-    public Connection(Irc irc, InetSocketAddress address) {
+    private static final int PING_INTERVAL = 30*1000; // 30 seconds
+
+    public Connection(Irc irc, InetSocketAddress address, ConnectionEngine engine) {
         this.irc = irc;
         this.address = address;
+        this.engine = engine;
     }
-    
+
     public InetSocketAddress getAddress() {
         return address;
     }
+
+    public boolean isConnected() {
+        return connected;
+    }
+    
+    /**
+     * How long it took to establish the connection.
+     * 
+     * @return The time in milliseconds, or -1 if not connected yet
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+    
+    /**
+     * Whether the connection has been accepted by the IRC server.
+     * 
+     * @return 
+     */
+    public boolean isRegistered() {
+        return registered;
+    }
     
+    void setRegistered(boolean registered) {
+        this.registered = registered;
+    }
+
     /**
-     * Thread that opens the connection and receives data from the connection.
+     * Starts opening the connection.
+     *
+     * @param selector The selector of the engine to register with
+     * @return true if the connection is being opened, false if an error
+     * occured (in which case the error has already been reported)
      */
-    @Override
-    public void run() {
-        Charset charset = Charset.forName("UTF-8");
+    boolean open(Selector selector) {
         try {
             LOGGER.info("Opening socket to "+address);
-            // Try to connect and open streams
-            socket = new Socket();
-            socket.connect(address, CONNECT_TIMEOUT);
-            LOGGER.info("Connecting to "
-                    +socket.getRemoteSocketAddress().toString());
-            out = new PrintWriter(
-                    new OutputStreamWriter(socket.getOutputStream(),charset)
-                    );
-            in = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream(),charset)
-                );
-            socket.setSoTimeout(SOCKET_BLOCK_TIMEOUT);
-        } catch (UnknownHostException ex) {
-            irc.disconnected(Irc.ERROR_UNKNOWN_HOST);
-            LOGGER.warning(ex.getLocalizedMessage());
-            return;
-        } catch (SocketTimeoutException ex) {
-            LOGGER.warning(ex.getLocalizedMessage());
-            irc.disconnected(Irc.ERROR_SOCKET_TIMEOUT);
-            return;
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = channel.register(selector, 0, this);
+            openedAt = System.currentTimeMillis();
+            connectTimeout = openedAt + CONNECT_TIMEOUT;
+            if (channel.connect(address)) {
+                connectionEstablished();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+            return true;
+        } catch (UnresolvedAddressException ex) {
+            closeChannel();
+            irc.disconnected(this, Irc.ERROR_UNKNOWN_HOST, "");
+            LOGGER.warning("Unresolved address: "+address);
         } catch (IOException ex) {
+            closeChannel();
             LOGGER.warning(ex.getLocalizedMessage());
-            irc.disconnected(Irc.ERROR_SOCKET_ERROR,ex.getMessage());
-            return;
+            irc.disconnected(this, Irc.ERROR_SOCKET_ERROR,ex.getMessage());
         }
+        return false;
+    }
+
+    /**
+     * Called when the socket is ready to complete connecting.
+     *
+     * @throws IOException If connecting failed
+     */
+    void finishConnect() throws IOException {
+        if (channel.finishConnect()) {
+            connectionEstablished();
+        }
+    }
+
+    private void connectionEstablished() {
+        LOGGER.info("Connecting to "+address);
+        key.interestOps(SelectionKey.OP_READ);
+        long now = System.currentTimeMillis();
+        connectTime = now - openedAt;
+        nextPing = now + PING_INTERVAL;
         // At this point the connection succeeded, but not registered with the
         // IRC server (wich is often called "connected" in this context)
-        
         connected = true;
-        irc.connected(socket.getInetAddress().toString(),address.getPort());
+        irc.connected(this, address.getAddress().toString(),address.getPort());
+        flush();
+    }
 
-        while (true) {
-            try {
-                // Read line (blocks, but has a timeout set)
-                String receivedData = in.readLine();
-                if (receivedData == null) {
-                    break;
-                }
-                // Data was received
-                irc.received(receivedData);
-                activity();
-            } catch (SocketTimeoutException ex) {
-                checkConnection();
-            } catch (IOException ex) {
-                LOGGER.info("Error reading from socket: "+ex.getLocalizedMessage());
-                break;
-            }
+    /**
+     * Reads available data from the socket and gives any complete lines to
+     * the {@code Irc} object.
+     *
+     * @return false if the end of the stream was reached
+     * @throws IOException If an error occured reading from the socket
+     */
+    boolean read() throws IOException {
+        int read = channel.read(decoder.getBuffer());
+        if (read == -1) {
+            return false;
         }
+        IrcMessage message;
+        while ((message = decoder.next()) != null) {
+            irc.received(this, message);
+        }
+        return true;
+    }
 
-        // No longer receiving data, so properly close connection if necessary.
-        close();
+    /**
+     * Writes as much pending data as possible to the socket, coalescing all
+     * lines that are pending into one write. If not everything could be
+     * written, the engine is notified when the socket is writable again.
+     *
+     * @throws IOException If an error occured writing to the socket
+     */
+    void write() throws IOException {
+        writeRequested.set(false);
+        if (!connected) {
+            return;
+        }
+        if (outgoing.write(channel)) {
+            key.interestOps(SelectionKey.OP_READ);
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
     }
     
     /**
-     * Notifies the activity tracker that there was activity on the connection.
+     * The queue of lines waiting to be written, which also provides stats
+     * about the queue size and write latency.
+     *
+     * @return 
      */
-    private void activity() {
-        activityStats.increase();
-        connectionCheckedCount = 0;
+    public OutboundQueue getOutboundQueue() {
+        return outgoing;
+    }
+
+    /**
+     * Tries to write any pending data before closing, without waiting if the
+     * socket isn't ready.
+     */
+    void flush() {
+        try {
+            write();
+        } catch (IOException ex) {
+            LOGGER.info("Error writing to socket: "+ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Gets the time the next timer of this connection is due.
+     *
+     * @return The time in milliseconds
+     */
+    long getNextTimer() {
+        if (!connected) {
+            return connectTimeout;
+        }
+        long pingTimeout = irc.getPingTimeout();
+        if (pingSent > 0 && pingTimeout > 0) {
+            return Math.min(nextPing, pingSent + pingTimeout);
+        }
+        return nextPing;
+    }
+
+    /**
+     * Runs the timers that are due.
+     *
+     * @param now The current time in milliseconds
+     * @return An error code if the connection should be closed, 0 otherwise
+     */
+    int timer(long now) {
+        if (!connected) {
+            if (now >= connectTimeout) {
+                LOGGER.warning("Connect timed out: "+address);
+                return Irc.ERROR_SOCKET_TIMEOUT;
+            }
+            return 0;
+        }
+        long pingTimeout = irc.getPingTimeout();
+        if (pingSent > 0 && pingTimeout > 0 && now - pingSent >= pingTimeout) {
+            // Don't wait for the socket to die if the server doesn't respond
+            LOGGER.warning("No PONG from "+address+" after "+(now - pingSent)+"ms");
+            return Irc.ERROR_PING_TIMEOUT;
+        }
+        if (pingSent > 0 && pingTimeout <= 0 && now - pingSent >= PING_INTERVAL) {
+            // Without timeout, consider it lost, so the next PING is sent
+            LOGGER.info("No PONG from "+address+" after "+(now - pingSent)+"ms");
+            latency.addLost();
+            pingSent = 0;
+        }
+        if (now >= nextPing) {
+            // Only one PING at a time, so a missing PONG is noticed
+            if (pingSent == 0 && registered) {
+                pingToken = String.valueOf(now);
+                pingSent = now;
+                send("PING :"+pingToken);
+            }
+            nextPing = now + PING_INTERVAL;
+        }
+        return 0;
     }
     
     /**
-     * Checks if the server should be pinged. Takes into account the approximate
-     * passed time and how active the connection was before it stopped being
-     * active.
-     */
-    private void checkConnection() {
-        connectionCheckedCount++;
-        float statsFactor = 1 + activityStats.getCount(false) / 2f;
-        float passedTime = connectionCheckedCount * statsFactor * SOCKET_BLOCK_TIMEOUT;
-//        System.out.println("Time -"+(CHECK_CONNECTION_TIMEOUT - passedTime) / 1000
-//                +" "+activityStats.getCount(false)
-//                +" "+statsFactor*connectionCheckedCount);
-        if (passedTime > CHECK_CONNECTION_TIMEOUT) {
-            LOGGER.info("Pinging server to check connection..");
-            send("PING");
-            connectionCheckedCount = 0;
-            activityStats.getCount(true);
-        }
-        // count * factor * block = timeout
-        // timeout / (1+count/2) = time until ping
-        // 300 / (1+x /2)
+     * Called when a PONG was received on this connection. If it answers the
+     * last PING that was sent, then the round-trip latency is recorded.
+     * 
+     * @param token The token the server returned
+     * @return The latency in milliseconds, or -1 if the PONG didn't match
+     */
+    long pongReceived(CharSequence token) {
+        if (pingSent == 0 || !pingToken.contentEquals(token)) {
+            return -1;
+        }
+        long result = System.currentTimeMillis() - pingSent;
+        pingSent = 0;
+        latency.add(result);
+        return result;
     }
     
     /**
-     * Closes the connection if still connected and cleans up.
+     * The round-trip latencies measured on this connection.
+     * 
+     * @return 
+     */
+    public LatencyStats getLatency() {
+        return latency;
+    }
+
+    /**
+     * Closes the connection if still connected and cleans up. Any data that
+     * was sent before this is called is still tried to be written.
      */
-    synchronized public void close() {
-        if (connected) {
-            LOGGER.info("Closing socket.");
+    public void close() {
+        engine.close(this);
+    }
+
+    /**
+     * Called by the engine when the connection was closed or couldn't be
+     * opened.
+     *
+     * @param reason The reason the connection was closed
+     * @param reasonMessage
+     */
+    void closed(int reason, String reasonMessage) {
+        LOGGER.info("Closing socket.");
+        closeChannel();
+        outgoing.clear();
+        decoder.reset();
+        connected = false;
+        registered = false;
+        pingSent = 0;
+        irc.disconnected(this, reason, reasonMessage);
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
             try {
-                out.close();
-                in.close();
-                socket.close();
+                channel.close();
             } catch (IOException ex) {
                 LOGGER.warning("Error closing socket: "+ex.getLocalizedMessage());
             }
-            irc.disconnected(Irc.ERROR_CONNECTION_CLOSED);
         }
-        connected = false;
     }
-    
+
     /**
-     * Send a line of data to the server.
-     * 
-     * @param data 
+     * Send a line of data to the server. The data is only queued to be
+     * written by the engine thread, so this doesn't block.
+     *
+     * @param data
      */
-    synchronized public void send(String data) {
+    public void send(String data) {
         irc.sent(data);
-        out.print(data+"\r\n");
-        out.flush();
-        activity();
+        outgoing.add(CHARSET.encode(data+"\r\n"));
+        if (writeRequested.compareAndSet(false, true)) {
+            engine.requestWrite(this);
+        }
     }
 }
@@ -0,0 +1,288 @@
+
+package chatty;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single thread that handles any number of {@code Connection} objects using
+ * a {@code Selector}. Connecting, reading, writing and the timers of the
+ * connections (connect timeout, checking the connection) are all done in this
+ * thread, so the connections don't need a thread of their own.
+ *
+ * Any method of the {@code Connection} that is called by the engine is called
+ * from the engine thread.
+ *
+ * An unexpected exception while handling a connection only closes that
+ * connection, so the engine thread keeps running for the other connections.
+ *
+ * @author tduva
+ */
+public class ConnectionEngine implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectionEngine.class.getName());
+
+    private static ConnectionEngine defaultEngine;
+
+    private final Selector selector;
+
+    /**
+     * Tasks from other threads to be run in the engine thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Connections that have new data to be written.
+     */
+    private final Queue<Connection> writeRequests = new ConcurrentLinkedQueue<>();
+
+    /**
+     * All currently open connections, only accessed from the engine thread.
+     */
+    private final Set<Connection> connections = new HashSet<>();
+
+    private Thread thread;
+
+    public ConnectionEngine() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * Gets the engine shared by all connections, starting it if necessary.
+     *
+     * @return The {@code ConnectionEngine}
+     * @throws java.io.IOException If the selector couldn't be opened
+     */
+    public static synchronized ConnectionEngine getDefault() throws IOException {
+        if (defaultEngine == null) {
+            defaultEngine = new ConnectionEngine();
+            defaultEngine.start();
+        }
+        return defaultEngine;
+    }
+
+    /**
+     * Starts the engine thread.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this, "ConnectionEngine");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Starts opening the given connection.
+     *
+     * @param connection
+     */
+    public void open(final Connection connection) {
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (connection.open(selector)) {
+                        connections.add(connection);
+                    }
+                } catch (RuntimeException ex) {
+                    logUnexpected(ex);
+                    connections.remove(connection);
+                    notifyClosed(connection, Irc.ERROR_SOCKET_ERROR, ex.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the given connection, trying to write any data that is still
+     * pending first.
+     *
+     * @param connection
+     */
+    public void close(final Connection connection) {
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                connection.flush();
+                closed(connection, Irc.ERROR_CONNECTION_CLOSED, "");
+            }
+        });
+    }
+
+    /**
+     * Tells the engine that the given connection has new data to be written.
+     *
+     * @param connection
+     */
+    void requestWrite(Connection connection) {
+        writeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the given task in the engine thread.
+     *
+     * @param task
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public boolean isEngineThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        LOGGER.info("Connection engine started.");
+        while (true) {
+            try {
+                runTasks();
+                handleWriteRequests();
+                long timeout = runTimers();
+                selector.select(timeout);
+                handleSelectedKeys();
+            } catch (IOException ex) {
+                LOGGER.warning("Error in connection engine: "+ex.getLocalizedMessage());
+            } catch (RuntimeException ex) {
+                // Shouldn't happen, since the parts catch this themselves
+                logUnexpected(ex);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                logUnexpected(ex);
+            }
+        }
+    }
+
+    private void handleWriteRequests() {
+        Connection connection;
+        while ((connection = writeRequests.poll()) != null) {
+            if (connections.contains(connection)) {
+                write(connection);
+            }
+        }
+    }
+
+    /**
+     * Runs the timers of all connections that are due.
+     *
+     * @return The time in milliseconds until the next timer is due, at least 1
+     */
+    private long runTimers() {
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        Iterator<Connection> it = connections.iterator();
+        while (it.hasNext()) {
+            Connection connection = it.next();
+            try {
+                if (connection.getNextTimer() <= now) {
+                    int error = connection.timer(now);
+                    if (error != 0) {
+                        it.remove();
+                        notifyClosed(connection, error, "");
+                        continue;
+                    }
+                }
+                next = Math.min(next, connection.getNextTimer());
+            } catch (RuntimeException ex) {
+                logUnexpected(ex);
+                it.remove();
+                notifyClosed(connection, Irc.ERROR_CONNECTION_CLOSED, ex.toString());
+            }
+        }
+        if (next == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, next - now);
+    }
+
+    private void handleSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Connection connection = (Connection)key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    connection.finishConnect();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    if (!connection.read()) {
+                        closed(connection, Irc.ERROR_CONNECTION_CLOSED, "");
+                        continue;
+                    }
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write(connection);
+                }
+            } catch (CancelledKeyException ex) {
+                // Connection was closed in the meantime
+            } catch (IOException ex) {
+                LOGGER.warning(ex.getLocalizedMessage());
+                closed(connection, connection.isConnected()
+                        ? Irc.ERROR_CONNECTION_CLOSED : Irc.ERROR_SOCKET_ERROR,
+                        ex.getMessage());
+            } catch (RuntimeException ex) {
+                // For example from handling a received line
+                logUnexpected(ex);
+                key.cancel();
+                closed(connection, Irc.ERROR_CONNECTION_CLOSED, ex.toString());
+            }
+        }
+    }
+
+    private void write(Connection connection) {
+        try {
+            connection.write();
+        } catch (IOException ex) {
+            LOGGER.info("Error writing to socket: "+ex.getLocalizedMessage());
+            closed(connection, Irc.ERROR_CONNECTION_CLOSED, "");
+        } catch (RuntimeException ex) {
+            logUnexpected(ex);
+            closed(connection, Irc.ERROR_CONNECTION_CLOSED, ex.toString());
+        }
+    }
+
+    private void closed(Connection connection, int reason, String reasonMessage) {
+        if (connections.remove(connection)) {
+            notifyClosed(connection, reason, reasonMessage);
+        }
+    }
+
+    /**
+     * Tells the connection it was closed, which also informs the listener.
+     */
+    private void notifyClosed(Connection connection, int reason, String reasonMessage) {
+        try {
+            connection.closed(reason, reasonMessage);
+        } catch (RuntimeException ex) {
+            logUnexpected(ex);
+        }
+    }
+
+    private void logUnexpected(RuntimeException ex) {
+        LOGGER.log(Level.WARNING, "Unexpected error in connection engine", ex);
+    }
+
+}
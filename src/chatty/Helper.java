@@ -116,6 +116,9 @@ public class Helper {
             case Irc.ERROR_SOCKET_TIMEOUT:
                 result = "Connection timed out.";
                 break;
+            case Irc.ERROR_PING_TIMEOUT:
+                result = "Server not responding.";
+                break;
         }
         
         if (!result.isEmpty()) {
@@ -1,8 +1,16 @@
 
 package chatty;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
@@ -19,7 +27,55 @@ public abstract class Irc {
     private String nick;
     private String pass;
     
-    private Connection connection;
+    private volatile Connection connection;
+    private ConnectionEngine engine;
+    
+    /**
+     * Connections to different addresses that are opened at the same time
+     * when connecting. The first one that is registered becomes the main
+     * connection, the others are closed.
+     */
+    private final Set<Connection> racing = new HashSet<>();
+    
+    /**
+     * How many addresses are connected to at the same time.
+     */
+    private static final int RACE_COUNT = 3;
+    
+    /**
+     * The capability that makes the server send joins/parts and the names
+     * list.
+     */
+    public static final String MEMBERSHIP_CAPABILITY = "twitch.tv/membership";
+    
+    /**
+     * Capabilities requested from the server on every connection.
+     */
+    private final Set<String> capabilities = new LinkedHashSet<>();
+    
+    /**
+     * Whether joins/parts of other users and the names list are handled.
+     */
+    private volatile boolean membershipEvents = true;
+    
+    /**
+     * Which channel is joined on which connection. The main connection is
+     * always added first, additional connections are opened when more
+     * channels are joined than allowed per connection.
+     */
+    private final ChannelRouting routing = new ChannelRouting();
+    private Timer shardTimer;
+    
+    /**
+     * Sends the JOINs for all connections, in batches and rate limited.
+     */
+    private final JoinScheduler joinScheduler = new JoinScheduler(new JoinSchedulerListener());
+    
+    /**
+     * Delay in seconds before the channels of an additional connection that
+     * was lost are joined again.
+     */
+    private static final int SHARD_REJOIN_DELAY = 5;
     
     private String quitmessage = "Quit";
     
@@ -78,6 +134,18 @@ public abstract class Irc {
     
     public static final int REQUESTED_RECONNECT = 106;
     
+    /**
+     * Disconnect reason value for when the server didn't answer a PING in
+     * time.
+     */
+    public static final int ERROR_PING_TIMEOUT = 107;
+    
+    /**
+     * How long to wait for a PONG before closing the connection (in
+     * milliseconds), 0 to wait indefinitely.
+     */
+    private volatile long pingTimeout = 20*1000;
+    
     /**
      * Indicates that the user wanted the connection to be closed.
      */
@@ -120,11 +188,142 @@ public abstract class Irc {
         if (state >= STATE_CONNECTED) {
             String text = "Connected to: "+connectedIp+":"+connectedPort+" ";
             text += "["+getConnectedSince()+"]";
+            int connections = getConnectionCount();
+            if (connections > 1) {
+                text += " ("+connections+" connections)";
+            }
+            Connection c = connection;
+            if (c != null) {
+                text += " "+c.getOutboundQueue().getStats();
+                text += " "+c.getLatency().getStats();
+            }
             return text;
         }
         return "Not connected.";
     }
     
+    /**
+     * Gets the number of connections currently used for channels.
+     * 
+     * @return 
+     */
+    public synchronized int getConnectionCount() {
+        return routing.getConnections().size();
+    }
+    
+    /**
+     * Sets how many channels should be joined per connection, before another
+     * connection is opened. This only affects channels joined after this is
+     * changed.
+     * 
+     * @param channelsPerConnection The number of channels, 0 or less to join
+     * all channels on a single connection
+     */
+    public synchronized void setChannelsPerConnection(int channelsPerConnection) {
+        routing.setChannelsPerConnection(channelsPerConnection);
+    }
+    
+    /**
+     * Sets how many channels may be joined in how many seconds, in the format
+     * "joins/seconds".
+     * 
+     * @param joinsPerSeconds 
+     */
+    public void setJoinsPerSeconds(String joinsPerSeconds) {
+        joinScheduler.setJoinsPerSeconds(joinsPerSeconds);
+    }
+    
+    /**
+     * Sets how long to wait for the server to answer a PING, before the
+     * connection is closed (which means it will be reconnected), instead of
+     * waiting for the socket to fail.
+     * 
+     * @param seconds The time in seconds, 0 to never close the connection
+     * because of a missing PONG
+     */
+    public void setPingTimeout(int seconds) {
+        pingTimeout = seconds * 1000L;
+    }
+    
+    /**
+     * How long to wait for the server to answer a PING.
+     * 
+     * @return The time in milliseconds, 0 for no timeout
+     */
+    long getPingTimeout() {
+        return pingTimeout;
+    }
+    
+    /**
+     * Adds or removes a capability to request from the server. It is
+     * requested on every connection once it is established, and also changed
+     * on any current connections.
+     * 
+     * @param capability The name of the capability
+     * @param enabled Whether to request the capability, or stop requesting it
+     */
+    public void requestCapability(String capability, boolean enabled) {
+        Set<Connection> current;
+        synchronized(this) {
+            if (enabled ? !capabilities.add(capability) : !capabilities.remove(capability)) {
+                return;
+            }
+            current = new HashSet<>(routing.getConnections());
+            current.addAll(racing);
+        }
+        for (Connection c : current) {
+            if (c.isConnected()) {
+                c.send("CAP REQ :"+(enabled ? "" : "-")+capability);
+            }
+        }
+    }
+    
+    /**
+     * Sets whether joins/parts of other users and the names list should be
+     * received. If disabled, then the server is asked to not send them at
+     * all, and any that are still received are not passed on.
+     * 
+     * @param enabled 
+     */
+    public void setMembershipEvents(boolean enabled) {
+        membershipEvents = enabled;
+        requestCapability(MEMBERSHIP_CAPABILITY, enabled);
+    }
+    
+    /**
+     * Gets the round-trip latency stats of the main connection.
+     * 
+     * @return The stats as a short text, or {@code null} if not connected
+     */
+    public String getLatencyStats() {
+        Connection c = connection;
+        if (c == null) {
+            return null;
+        }
+        return c.getLatency().getStats();
+    }
+    
+    /**
+     * Gets the measured connect times of the addresses connected to so far.
+     * 
+     * @return A {@code Map} with "ip:port" as key and the time in milliseconds
+     * as value
+     */
+    public Map<String, Long> getConnectTimes() {
+        return addressManager.getConnectTimes();
+    }
+    
+    /**
+     * Sets previously measured connect times, so the fastest addresses are
+     * tried first.
+     * 
+     * @param connectTimes A {@code Map} with "ip:port" as key and the time in
+     * milliseconds as value
+     */
+    public void setConnectTimes(Map<String, Long> connectTimes) {
+        addressManager.setConnectTimes(connectTimes);
+    }
+    
     private String getConnectedSince() {
         long duration = (System.currentTimeMillis() - connectedSince) / 1000;
         String text = "";
@@ -155,8 +354,8 @@ public abstract class Irc {
     abstract public void debug(String line);
     
     /**
-     * Connects to a server using the given credentials. This starts a new
-     * Thread, running the Connection class, after checking if already
+     * Connects to a server using the given credentials. This opens a new
+     * Connection in the shared ConnectionEngine, after checking if already
      * connected.
      * 
      * @param server The ip or host of the server
@@ -175,19 +374,26 @@ public abstract class Irc {
             return;
         }
         
-        InetSocketAddress address = null;
+        List<InetSocketAddress> addresses;
         try {
-            address = addressManager.getAddress(server, port);
+            addresses = addressManager.getAddresses(server, port, RACE_COUNT);
         } catch (UnknownHostException ex) {
             LOGGER.warning("Could not resolve host: "+server);
             disconnected(ERROR_UNKNOWN_HOST);
             return;
         }
-        if (address == null) {
+        if (addresses.isEmpty()) {
             onConnectionAttempt(null, -1);
             LOGGER.warning("Invalid address: "+server+":"+port);
             return;
         }
+        try {
+            engine = ConnectionEngine.getDefault();
+        } catch (IOException ex) {
+            LOGGER.warning("Could not start connection engine: "+ex.getLocalizedMessage());
+            disconnected(null, ERROR_SOCKET_ERROR, ex.getMessage());
+            return;
+        }
 
         state = STATE_CONNECTING;
         
@@ -195,22 +401,102 @@ public abstract class Irc {
         this.pass = pass;
         this.nick = nick;
         
-        // Only give server and port, nick and pass are saved in this class
-        // and sent once the initial connection has been established.
-        onConnectionAttempt(address.getHostString(), address.getPort());
-        connection = new Connection(this,address);
-        new Thread(connection).start();
+        // Connect to several addresses at once, the first one to be
+        // registered is used and the others closed
+        Set<Connection> candidates = new HashSet<>();
+        synchronized(this) {
+            closeShards();
+            connection = null;
+            racing.clear();
+            for (InetSocketAddress address : addresses) {
+                candidates.add(new Connection(this, address, engine));
+            }
+            racing.addAll(candidates);
+        }
+        for (Connection c : candidates) {
+            // Only give server and port, nick and pass are saved in this class
+            // and sent once the initial connection has been established.
+            onConnectionAttempt(c.getAddress().getHostString(), c.getAddress().getPort());
+            engine.open(c);
+        }
+    }
+    
+    /**
+     * A connection that is racing with others was registered. If it's the
+     * first one, it becomes the main connection and the others are closed.
+     * 
+     * @param c The connection that was registered
+     * @return true if the connection became the main connection
+     */
+    private boolean raceWon(Connection c) {
+        synchronized(this) {
+            if (!racing.remove(c)) {
+                return false;
+            }
+            connection = c;
+            routing.addConnection(c);
+            connectedIp = c.getAddress().getAddress().toString();
+            connectedPort = c.getAddress().getPort();
+            for (Connection other : racing) {
+                other.send("QUIT :"+quitmessage);
+                other.close();
+            }
+            racing.clear();
+        }
+        LOGGER.info("Using connection to "+c.getAddress()
+                +" (connected in "+c.getConnectTime()+"ms)");
+        return true;
+    }
+    
+    /**
+     * Opens an additional connection to the same address as the main
+     * connection, for channels that don't fit on the existing connections.
+     * 
+     * @return The new {@code Connection}, which is still connecting
+     */
+    private Connection openShard() {
+        Connection shard = new Connection(this, connection.getAddress(), engine);
+        routing.addConnection(shard);
+        LOGGER.info("Opening additional connection ("
+                +routing.getConnections().size()+" connections)");
+        engine.open(shard);
+        return shard;
     }
     
+    /**
+     * Closes all connections except the main connection.
+     */
+    private void closeShards() {
+        for (Connection shard : routing.getConnections().toArray(new Connection[0])) {
+            if (shard != connection) {
+                routing.removeConnection(shard);
+                shard.send("QUIT :"+quitmessage);
+                shard.close();
+            }
+        }
+        routing.clear();
+    }
     
     /**
      * Disconnect if connected.
      */
     public void disconnect() {
-        if (state > STATE_CONNECTING && connection != null) {
+        if (state > STATE_CONNECTING) {
             requestedDisconnect = true;
             quit();
-            connection.close();
+            Connection c;
+            synchronized(this) {
+                closeShards();
+                // Racing connections stay in the set, so the last one to be
+                // closed finishes the disconnect
+                for (Connection other : racing.toArray(new Connection[0])) {
+                    other.close();
+                }
+                c = connection;
+            }
+            if (c != null) {
+                c.close();
+            }
         }
     }
     
@@ -224,128 +510,120 @@ public abstract class Irc {
     
 
     /**
-     * Parse IRC-Messages receveived from the Connection-Thread.
+     * Handles IRC-Messages received and parsed by the Connection. The
+     * message object is reused for the next line, so any data that should be
+     * kept has to be turned into a {@code String}.
      * 
-     * @param data The line of data received
+     * @param c The connection the message was received on
+     * @param message The parsed message
      */
-    protected void received(String data) {
-        if (data == null) {
-            return;
-        }
-        raw(data);
-        
-        String prefix = "";
-        String command;
-        String[] parameters = new String[0];
-        String trailing = "";
-        
-        int endOfPrefix = 0;
-        int endOfCommand = 0;
-        
-        // Get prefix if available
-        if (data.startsWith(":")) {
-            endOfPrefix = data.indexOf(" ");
-            if (endOfPrefix == -1) {
-                System.err.println("Parsing error: Couldn't find whitespace after prefix.");
-                return;
-            }
-            prefix = data.substring(1,endOfPrefix);
-        }
-        
-        // Find and get trailing if available
-        endOfCommand = data.indexOf(":",endOfPrefix);
-        if (endOfCommand == -1) {
-            // No trailing, so the command takes up the remaining length
-            endOfCommand = data.length();
-        }
-        else {
-            trailing = data.substring(endOfCommand+1,data.length());
-        }
-        
-        // Get commands and parameters
-        String commandAndParameter = data.substring(endOfPrefix,endOfCommand).trim();
-        // Trying precompiled Pattern, but may not change the performance
-        // that much (it's an easy Pattern after all)
-        String[] parts = SPACE_PATTERN.split(commandAndParameter);
-        //String[] parts = commandAndParameter.split(" ");
-        if (parts.length > 1) {
-            // Get parameters if available
-            parameters = new String[parts.length - 1];
-            System.arraycopy(parts, 1, parameters, 0, parts.length - 1);
-        }
-        // First part must be command
-        command = parts[0];
+    protected void received(Connection c, IrcMessage message) {
+        raw(message.getLine());
         
         // An exception shouldn't happen unless the message is malformed (hopefully :P)
         try {
-            receivedCommand(prefix,command,parameters,trailing);
-        } catch (NullPointerException ex) {
-            LOGGER.warning("Error parsing irc message: "+data+" ["+ex.getLocalizedMessage()+"]");
-        } catch (ArrayIndexOutOfBoundsException ex) {
-            LOGGER.warning("Error parsing irc message: "+data+" ["+ex.getLocalizedMessage()+"]");
+            receivedCommand(c, message);
+        } catch (NullPointerException | IndexOutOfBoundsException ex) {
+            LOGGER.warning("Error parsing irc message: "+message+" ["+ex.getLocalizedMessage()+"]");
         }
     }
     
     /**
      * Message has already been parsed, so let's check what command it is.
      * 
-     * @param prefix
-     * @param command
-     * @param parameters
-     * @param trailing 
+     * Strings are only created for the parts that are actually given to the
+     * handlers.
+     * 
+     * @param c
+     * @param message 
      */
-    private void receivedCommand(String prefix, String command, String[] parameters, String trailing) {
-        String nick = getNickFromPrefix(prefix);
+    private void receivedCommand(Connection c, IrcMessage message) {
+        IrcMessage.View trailing = message.getTrailing();
         
-        parsed(prefix,command,parameters,trailing);
+        parsed(message);
         
-        if (command.equals("PING")) {
-            sendCommand("PONG",trailing);
+        if (message.isCommand("PING")) {
+            // Answer on the same connection
+            c.send("PONG :"+trailing);
+        }
+        else if (message.isCommand("PONG")) {
+            // Answer to our own PING, the token is the last parameter
+            IrcMessage.View token = message.hasTrailing() ? trailing
+                    : message.getParameter(message.getParameterCount() - 1);
+            long latency = c.pongReceived(token);
+            if (latency != -1) {
+                onLatency(c, latency);
+            }
         }
         
-        if (command.equals("PRIVMSG")) {
-            if (parameters[0].startsWith("#")) {
-                //System.out.println((int)trailing.charAt(0));
-                //filter.reset(trailing).replaceAll("?");
+        if (message.isCommand("PRIVMSG")) {
+            String nick = message.getNick().toString();
+            String prefix = message.getPrefix().toString();
+            if (message.getParameter(0).startsWith('#')) {
+                String channel = message.getParameter(0).toString();
+                if (message.hasTags()) {
+                    onUserTags(channel, nick, message);
+                }
                 if (trailing.charAt(0) == (char)1) {
                     if (trailing.startsWith("ACTION", 1)) {
-                        onChannelAction(parameters[0], nick, prefix, trailing.substring(7).trim());
+                        onChannelAction(channel, nick, prefix, trailing.toString().substring(7).trim());
                     }
                 }
                 else {
-                    onChannelMessage(parameters[0], nick, prefix, trailing);
+                    onChannelMessage(channel, nick, prefix, trailing.toString());
                 }
             } else {
-                onQueryMessage(nick, prefix, trailing);
+                onQueryMessage(nick, prefix, trailing.toString());
             }
         }
-        if (command.equals("NOTICE")) {
-            if (!parameters[0].startsWith("#")) {
-                onNotice(nick, prefix, trailing);
+        if (message.isCommand("NOTICE")) {
+            if (!message.getParameter(0).startsWith('#')) {
+                onNotice(message.getNick().toString(),
+                        message.getPrefix().toString(), trailing.toString());
             }
         }
-        if (command.equals("JOIN")) {
-            if (trailing.isEmpty() && parameters.length > 0) {
-                onJoin(parameters[0], nick, prefix);
+        if (message.isCommand("JOIN")) {
+            if (!membershipEvents && !message.getNick().contentEqualsIgnoreCase(nick)) {
+                return;
+            }
+            String joinNick = message.getNick().toString();
+            String prefix = message.getPrefix().toString();
+            String channel;
+            if (trailing.isEmpty() && message.getParameterCount() > 0) {
+                channel = message.getParameter(0).toString();
             } else {
-                onJoin(trailing, nick, prefix);
+                channel = trailing.toString();
             }
+            if (joinNick.equalsIgnoreCase(nick)) {
+                joinScheduler.joined(channel);
+            }
+            onJoin(channel, joinNick, prefix);
         }
-        else if (command.equals("PART")) {
-            onPart(parameters[0], nick, prefix, trailing);
+        else if (message.isCommand("PART")) {
+            if (!membershipEvents && !message.getNick().contentEqualsIgnoreCase(nick)) {
+                return;
+            }
+            String channel = message.getParameter(0).toString();
+            String partNick = message.getNick().toString();
+            if (partNick.equalsIgnoreCase(nick)) {
+                channelParted(channel);
+            }
+            onPart(channel, partNick,
+                    message.getPrefix().toString(), trailing.toString());
         }
-        else if (command.equals("MODE")) {
-            if (parameters.length == 3) {
-                String chan = parameters[0];
-                String mode = parameters[1];
-                String name = parameters[2];
+        else if (message.isCommand("MODE")) {
+            if (message.getParameterCount() == 3) {
+                IrcMessage.View mode = message.getParameter(1);
                 
                 if (mode.length() == 2) {
-                    String modeChar = mode.substring(1, 2);
-                    if (mode.startsWith("+")) {
+                    String chan = message.getParameter(0).toString();
+                    String name = message.getParameter(2).toString();
+                    String modeChar = String.valueOf(mode.charAt(1));
+                    String prefix = message.getPrefix().toString();
+                    if (mode.startsWith('+')) {
                         onModeChange(chan,name,true,modeChar, prefix);
                     }
-                    else if (mode.startsWith("-")) {
+                    else if (mode.startsWith('-')) {
                         onModeChange(chan,name,false,modeChar, prefix);
                     }
                     
@@ -353,23 +631,43 @@ public abstract class Irc {
             }
         }
         // Now the connection is really going.. ;)
-        else if (command.equals("004")) {
-            setState(STATE_REGISTERED);
-            onRegistered();
+        else if (message.isCommand("004")) {
+            c.setRegistered(true);
+            if (raceWon(c)) {
+                setState(STATE_REGISTERED);
+                onRegistered();
+            } else {
+                shardRegistered(c);
+            }
         }
         // Nick list, usually on channel join
-        else if (command.equals("353")) {
-            if (parameters.length == 3 && parameters[1].equals("=") && parameters[2].startsWith("#")) {
-                String[] names = trailing.split(" ");
-                onUserlist(parameters[2],names);
+        else if (message.isCommand("353")) {
+            if (membershipEvents && message.getParameterCount() == 3
+                    && message.getParameter(1).contentEquals("=")
+                    && message.getParameter(2).startsWith('#')) {
+                String[] names = SPACE_PATTERN.split(trailing);
+                onUserlist(message.getParameter(2).toString(),names);
             }
             
         }
         // WHO response not really correct now
-        else if (command.equals("352")) {
-            String[] parts = trailing.split(" ");
-            if (parts.length > 1) {
-                //onWhoResponse(parts[0],parts[1]);
+        else if (message.isCommand("352")) {
+            //String[] parts = trailing.toString().split(" ");
+            //if (parts.length > 1) {
+            //    onWhoResponse(parts[0],parts[1]);
+            //}
+        }
+        else if (message.isCommand("CAP")) {
+            LOGGER.info("Capabilities "+message.getParameter(1)+": "+trailing);
+        }
+        // Info about the own user, for a channel or global
+        else if (message.isCommand("USERSTATE") || message.isCommand("GLOBALUSERSTATE")) {
+            if (message.hasTags()) {
+                String channel = null;
+                if (message.getParameter(0).startsWith('#')) {
+                    channel = message.getParameter(0).toString();
+                }
+                onUserTags(channel, nick, message);
             }
         }
     }
@@ -410,7 +708,78 @@ public abstract class Irc {
             if (!channel.startsWith("#")) {
                 channel = "#" + channel;
             }
-            send("JOIN " + channel);
+            routeJoin(channel);
+        }
+    }
+    
+    /**
+     * Assigns the channel to the connection it is already on, or to the
+     * connection with the least channels, opening a new connection if all
+     * are full. The channel is then joined by the JoinScheduler once the
+     * connection is registered and the join budget allows it.
+     * 
+     * @param channel The channel, with leading #
+     */
+    private synchronized void routeJoin(String channel) {
+        if (connection == null) {
+            return;
+        }
+        Connection c = routing.findConnection(channel);
+        if (c == null) {
+            c = openShard();
+        }
+        routing.assign(channel, c);
+        joinScheduler.add(channel);
+    }
+    
+    /**
+     * An additional connection was registered, so join the channels that
+     * were assigned to it.
+     * 
+     * @param c 
+     */
+    private void shardRegistered(Connection c) {
+        joinScheduler.wakeup();
+    }
+    
+    private class JoinSchedulerListener implements JoinScheduler.JoinListener {
+
+        @Override
+        public Connection getJoinConnection(String channel) {
+            synchronized(Irc.this) {
+                Connection c = routing.getConnection(channel);
+                if (c != null && c.isRegistered()) {
+                    return c;
+                }
+                return null;
+            }
+        }
+
+        @Override
+        public void sendJoin(Connection c, String channels) {
+            c.send("JOIN " + channels);
+        }
+
+        @Override
+        public void joinsCompleted(int joined, Set<String> failed, long duration) {
+            onJoinsCompleted(joined, failed, duration);
+        }
+    }
+    
+    /**
+     * The local user has left the channel, so it doesn't have to be on any
+     * connection anymore. Additional connections that have no channels left
+     * are closed.
+     * 
+     * @param channel 
+     */
+    private synchronized void channelParted(String channel) {
+        joinScheduler.remove(channel);
+        Connection c = routing.unassign(channel);
+        if (c != null && c != connection && routing.getChannelCount(c) == 0) {
+            routing.removeConnection(c);
+            c.send("QUIT :"+quitmessage);
+            c.close();
         }
     }
     
@@ -423,7 +792,7 @@ public abstract class Irc {
         if (!channel.startsWith("#")) {
             channel = "#"+channel;
         }
-        send("PART "+channel);
+        sendToChannel(channel, "PART "+channel);
     }
     
     /**
@@ -433,61 +802,120 @@ public abstract class Irc {
      * @param message 
      */
     public void sendMessage(String to,String message) {
-        send("PRIVMSG "+to+" :"+message);
+        sendToChannel(to, "PRIVMSG "+to+" :"+message);
     }
     
     public void sendActionMessage(String to,String message) {
-        send("PRIVMSG "+to+" :"+(char)1+"ACTION "+message+(char)1);
+        sendToChannel(to, "PRIVMSG "+to+" :"+(char)1+"ACTION "+message+(char)1);
     }
     
     synchronized public void send(String data) {
-        if (state > STATE_OFFLINE) {
+        if (state > STATE_OFFLINE && connection != null) {
             connection.send(data);
         }
     }
     
     /**
-     * Called from the Connection Thread once the initial connection has
+     * Send a line on the connection the given channel is joined on, or the
+     * main connection if the channel isn't on any connection.
+     * 
+     * @param channel
+     * @param data 
+     */
+    synchronized public void sendToChannel(String channel, String data) {
+        if (state > STATE_OFFLINE) {
+            Connection c = routing.getConnection(channel);
+            if (c == null || !c.isRegistered()) {
+                c = connection;
+            }
+            if (c != null) {
+                c.send(data);
+            }
+        }
+    }
+    
+    /**
+     * Called from the Connection once the initial connection has
      * been established without an error.
      * 
      * So now work on getting the connection to the IRC Server going by
      * sending credentials and stuff.
      * 
+     * @param c The connection that was established
      * @param ip
      * @param port
      */
-    protected void connected(String ip, int port) {
-        this.connectedIp = ip;
-        this.connectedPort = port;
-        this.connectedSince = System.currentTimeMillis();
-        setState(Irc.STATE_CONNECTED);
-        onConnect();
+    protected void connected(Connection c, String ip, int port) {
+        boolean first = false;
+        synchronized(this) {
+            if (racing.contains(c)) {
+                addressManager.addConnectTime(c.getAddress(), c.getConnectTime());
+                if (state < STATE_CONNECTED) {
+                    this.connectedIp = ip;
+                    this.connectedPort = port;
+                    first = true;
+                }
+            }
+        }
+        if (first) {
+            this.connectedSince = System.currentTimeMillis();
+            setState(Irc.STATE_CONNECTED);
+            onConnect();
+        }
+        onConnectionEstablished(c);
+        String requested;
+        synchronized(this) {
+            requested = Helper.join(capabilities, " ");
+        }
+        if (!requested.isEmpty()) {
+            c.send("CAP REQ :"+requested);
+        }
         if (pass != null) {
-            send("PASS " + pass);
+            c.send("PASS " + pass);
         }
-        //send("USER " + nick + " * * : "+nick);
-        send("NICK " + nick);
+        //c.send("USER " + nick + " * * : "+nick);
+        c.send("NICK " + nick);
     }
     
     /**
-     * Called by the Connection Thread, when the Connection was closed, be
+     * Called by the Connection, when the Connection was closed, be
      * it because it was closed by the server, the program itself or because
      * of an error.
      * 
+     * @param c The connection that was closed
      * @param reason
      * @param reasonMessage 
      */
-    protected void disconnected(int reason, String reasonMessage) {
+    protected void disconnected(Connection c, int reason, String reasonMessage) {
+        boolean shard = false;
+        synchronized(this) {
+            if (racing.remove(c)) {
+                // If connecting failed, then add it as an error
+                if (!requestedDisconnect) {
+                    addressManager.addError(c.getAddress());
+                }
+                if (!racing.isEmpty() || connection != null) {
+                    // Other connections are still trying
+                    return;
+                }
+            } else if (c != null && c != connection) {
+                shard = true;
+            }
+        }
+        if (shard) {
+            shardDisconnected(c, reason, reasonMessage);
+            return;
+        }
+        synchronized(this) {
+            closeShards();
+            connection = null;
+        }
+        joinScheduler.clear();
         // Retrieve state before changing it, but must be changed before calling
         // onDisconnect() which might check the state when trying to reconnect
         int state = getState();
         setState(Irc.STATE_OFFLINE);
         
-        // If connecting failed, then add it as an error
-        if (!requestedDisconnect && state != STATE_REGISTERED && connection != null) {
-            addressManager.addError(connection.getAddress());
-        }
-
         if (requestedDisconnect) {
             // If the disconnect was requested (like the user clicking on
             // a menu item), include the appropriate reason
@@ -506,7 +934,48 @@ public abstract class Irc {
      * @param reason 
      */
     void disconnected(int reason) {
-        disconnected(reason,"");
+        disconnected(null, reason, "");
+    }
+    
+    /**
+     * An additional connection was closed. If it wasn't closed on purpose,
+     * then the channels that were on it are joined again after a delay,
+     * possibly on different connections, while the channels on the other
+     * connections are not affected.
+     * 
+     * @param c
+     * @param reason
+     * @param reasonMessage 
+     */
+    private void shardDisconnected(Connection c, int reason, String reasonMessage) {
+        final Set<String> channels;
+        synchronized(this) {
+            if (!routing.hasConnection(c)) {
+                // Closed on purpose
+                return;
+            }
+            channels = routing.removeConnection(c);
+            for (String channel : channels) {
+                joinScheduler.remove(channel);
+            }
+            if (state != STATE_REGISTERED) {
+                return;
+            }
+            if (shardTimer == null) {
+                shardTimer = new Timer("ShardRejoin", true);
+            }
+            shardTimer.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    for (String channel : channels) {
+                        routeJoin(channel);
+                    }
+                }
+            }, SHARD_REJOIN_DELAY*1000);
+        }
+        LOGGER.info("Additional connection lost ("+channels.size()+" channels), rejoining in "+SHARD_REJOIN_DELAY+"s");
+        onShardDisconnect(channels, reason, reasonMessage);
     }
     
     /*
@@ -535,13 +1004,32 @@ public abstract class Irc {
     
     void onConnect() { }
     
+    void onConnectionEstablished(Connection connection) { }
+    
+    void onShardDisconnect(Set<String> channels, int reason, String reasonMessage) { }
+    
+    void onJoinsCompleted(int joined, Set<String> failed, long duration) { }
+    
+    /**
+     * A message with IRCv3 tags about a user was received. The message is
+     * only valid during this call, and the tags are only decoded when they
+     * are actually requested from it.
+     * 
+     * @param channel The channel, or {@code null} if not channel-specific
+     * @param nick The user the tags are about
+     * @param message The message containing the tags
+     */
+    void onUserTags(String channel, String nick, IrcMessage message) { }
+    
+    void onLatency(Connection connection, long latency) { }
+    
     void onRegistered() { }
     
     void onDisconnect(int reason, String reasonMessage) { }
     
-    void parsed(String prefix, String command, String[] parameters, String trailing) { }
+    void parsed(IrcMessage message) { }
     
-    void raw(String message) { }
+    void raw(CharSequence message) { }
     
     void sent(String message) { }
     
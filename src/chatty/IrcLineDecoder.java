@@ -0,0 +1,172 @@
+
+package chatty;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.logging.Logger;
+
+/**
+ * Splits received data into lines and parses them into a reused
+ * {@code IrcMessage}. Line endings are found by scanning the bytes in the
+ * receive buffer directly, and each line is decoded into a reused char
+ * buffer, so in the normal case no objects are created per line.
+ *
+ * Data is added by writing into the buffer returned by {@code getBuffer()},
+ * after which {@code next()} can be called until it returns {@code null}.
+ *
+ * @author tduva
+ */
+public class IrcLineDecoder {
+
+    private static final Logger LOGGER = Logger.getLogger(IrcLineDecoder.class.getName());
+
+    private static final int INITIAL_SIZE = 16*1024;
+    private static final int MAX_SIZE = 256*1024;
+
+    private final CharsetDecoder decoder;
+    private final IrcMessage message = new IrcMessage();
+
+    /**
+     * The receive buffer, always kept in "fill" mode, so the position is the
+     * end of the received data.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SIZE);
+    private ByteBuffer lineView = buffer.duplicate();
+    private CharBuffer chars = CharBuffer.allocate(INITIAL_SIZE);
+
+    /**
+     * Start of the first line not yet returned.
+     */
+    private int lineStart;
+    /**
+     * Position up to which there is no line break after lineStart.
+     */
+    private int scanned;
+    /**
+     * If true, data up to the next line break is thrown away because the
+     * line was too long.
+     */
+    private boolean discarding;
+
+    public IrcLineDecoder(Charset charset) {
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Gets the buffer to write received data into. This may return a
+     * different buffer each time, so it should not be kept.
+     *
+     * @return The {@code ByteBuffer} with at least some space remaining
+     */
+    public ByteBuffer getBuffer() {
+        if (!buffer.hasRemaining()) {
+            makeRoom();
+        }
+        return buffer;
+    }
+
+    /**
+     * Gets the next complete line that was received, parsed into an
+     * {@code IrcMessage}. The same object is returned every time, so the
+     * previous message is no longer valid after this is called.
+     *
+     * @return The {@code IrcMessage}, or {@code null} if there is no complete
+     * line available (or only malformed ones)
+     */
+    public IrcMessage next() {
+        while (true) {
+            int end = buffer.position();
+            int lineEnd = -1;
+            for (int i = scanned; i < end; i++) {
+                if (buffer.get(i) == '\n') {
+                    lineEnd = i;
+                    break;
+                }
+            }
+            if (lineEnd == -1) {
+                if (lineStart == end) {
+                    // Everything consumed, so start from the beginning again
+                    buffer.clear();
+                    lineStart = 0;
+                    scanned = 0;
+                } else {
+                    scanned = end;
+                }
+                return null;
+            }
+            int start = lineStart;
+            lineStart = lineEnd + 1;
+            scanned = lineStart;
+            if (discarding) {
+                discarding = false;
+                continue;
+            }
+            if (lineEnd > start && buffer.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd == start) {
+                continue;
+            }
+            if (decodeLine(start, lineEnd)) {
+                return message;
+            }
+            LOGGER.warning("Error parsing irc message: "+message.getLine());
+        }
+    }
+
+    private boolean decodeLine(int start, int end) {
+        if (chars.capacity() < end - start) {
+            chars = CharBuffer.allocate(end - start);
+        }
+        chars.clear();
+        lineView.limit(end);
+        lineView.position(start);
+        decoder.reset();
+        decoder.decode(lineView, chars, true);
+        decoder.flush(chars);
+        return message.parse(chars.array(), chars.position());
+    }
+
+    /**
+     * Moves any data not yet returned as line to the start of the buffer, or
+     * grows the buffer if it only contains a single incomplete line. If the
+     * buffer already has the maximum size, the line is thrown away.
+     */
+    private void makeRoom() {
+        if (lineStart > 0) {
+            buffer.flip();
+            buffer.position(lineStart);
+            buffer.compact();
+            scanned -= lineStart;
+            lineStart = 0;
+        } else if (buffer.capacity() < MAX_SIZE) {
+            ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+            lineView = buffer.duplicate();
+        } else {
+            LOGGER.warning("Line too long, discarding "+buffer.position()+" bytes");
+            buffer.clear();
+            lineStart = 0;
+            scanned = 0;
+            discarding = true;
+        }
+    }
+
+    /**
+     * Throws away any data that was received, but not returned as line yet.
+     */
+    public void reset() {
+        buffer.clear();
+        lineStart = 0;
+        scanned = 0;
+        discarding = false;
+    }
+
+}
@@ -0,0 +1,524 @@
+
+package chatty;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A single parsed IRC message. This is a flyweight that is reused for every
+ * line received on a connection, so the parts of the message are only
+ * available as {@code CharSequence} views onto the decoded line, which are
+ * only valid until the next line is parsed. A {@code String} is only created
+ * when {@code toString()} is called on one of the views, so anything that
+ * has to be kept should be converted.
+ *
+ * IRCv3 message tags ("@key=value;key2=value2 :prefix COMMAND ..") are only
+ * located when parsing, the keys and values are only looked at when a tag is
+ * actually requested.
+ *
+ * @author tduva
+ */
+public class IrcMessage {
+
+    /**
+     * The maximum number of parameters (excluding trailing) as defined by the
+     * IRC protocol.
+     */
+    private static final int MAX_PARAMETERS = 15;
+
+    private static final View EMPTY = new View(new char[0]);
+
+    private char[] data = new char[0];
+    private int length;
+
+    private final View line = new View(this);
+    private final View tags = new View(this);
+    private final View prefix = new View(this);
+    private final View command = new View(this);
+    private final View trailing = new View(this);
+    private final View[] parameters = new View[MAX_PARAMETERS];
+    private int parameterCount;
+    private boolean hasTags;
+    private boolean hasPrefix;
+    private boolean hasTrailing;
+    
+    /**
+     * The decoded tags, only created when requested.
+     */
+    private Map<String, String> tagMap;
+
+    public IrcMessage() {
+        for (int i=0;i<parameters.length;i++) {
+            parameters[i] = new View(this);
+        }
+    }
+
+    /**
+     * Parses the given line into this object, replacing any previously parsed
+     * message. The array is not copied, so it must not be changed as long as
+     * the parsed message is used.
+     *
+     * @param data The array containing the line, without CR/LF
+     * @param length The length of the line in the array
+     * @return true if the line could be parsed, false if it was malformed
+     */
+    boolean parse(char[] data, int length) {
+        this.data = data;
+        this.length = length;
+        line.set(0, length);
+        tags.set(0, 0);
+        prefix.set(0, 0);
+        command.set(0, 0);
+        trailing.set(0, 0);
+        parameterCount = 0;
+        hasTags = false;
+        hasPrefix = false;
+        hasTrailing = false;
+        tagMap = null;
+
+        int pos = 0;
+        
+        // Get tags if available
+        if (length > 0 && data[0] == '@') {
+            int endOfTags = indexOf(' ', 1);
+            if (endOfTags == -1) {
+                return false;
+            }
+            tags.set(1, endOfTags);
+            hasTags = true;
+            pos = skipSpaces(endOfTags);
+        }
+
+        // Get prefix if available
+        if (pos < length && data[pos] == ':') {
+            int endOfPrefix = indexOf(' ', pos + 1);
+            if (endOfPrefix == -1) {
+                return false;
+            }
+            prefix.set(pos + 1, endOfPrefix);
+            hasPrefix = true;
+            pos = endOfPrefix;
+        }
+
+        // Command
+        pos = skipSpaces(pos);
+        int endOfCommand = indexOf(' ', pos);
+        if (endOfCommand == -1) {
+            endOfCommand = length;
+        }
+        if (endOfCommand == pos) {
+            return false;
+        }
+        command.set(pos, endOfCommand);
+        pos = endOfCommand;
+
+        // Parameters and trailing
+        while (true) {
+            pos = skipSpaces(pos);
+            if (pos >= length) {
+                break;
+            }
+            if (data[pos] == ':') {
+                trailing.set(pos + 1, length);
+                hasTrailing = true;
+                break;
+            }
+            int end = indexOf(' ', pos);
+            if (end == -1) {
+                end = length;
+            }
+            if (parameterCount < MAX_PARAMETERS) {
+                parameters[parameterCount++].set(pos, end);
+            }
+            pos = end;
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int from) {
+        return indexOf(c, from, length);
+    }
+    
+    private int indexOf(char c, int from, int to) {
+        for (int i=from;i<to;i++) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int skipSpaces(int from) {
+        while (from < length && data[from] == ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * The whole line as it was received (without CR/LF).
+     *
+     * @return
+     */
+    public CharSequence getLine() {
+        return line;
+    }
+
+    public boolean hasTags() {
+        return hasTags;
+    }
+    
+    /**
+     * The tags as they were received, without the leading '@', or an empty
+     * sequence if there were no tags.
+     * 
+     * @return 
+     */
+    public View getRawTags() {
+        return tags;
+    }
+    
+    /**
+     * Gets the value of a single tag, by looking through the tags without
+     * decoding the other ones.
+     * 
+     * @param key The name of the tag
+     * @return The unescaped value, an empty {@code String} if the tag has no
+     * value, or {@code null} if there is no such tag
+     */
+    public String getTag(String key) {
+        if (!hasTags) {
+            return null;
+        }
+        int pos = tags.start;
+        while (pos < tags.end) {
+            int end = indexOf(';', pos, tags.end);
+            if (end == -1) {
+                end = tags.end;
+            }
+            int keyEnd = indexOf('=', pos, end);
+            if (keyEnd == -1) {
+                keyEnd = end;
+            }
+            if (regionEquals(pos, keyEnd, key)) {
+                return keyEnd == end ? "" : unescape(keyEnd + 1, end);
+            }
+            pos = end + 1;
+        }
+        return null;
+    }
+    
+    /**
+     * Checks if the tag with the given key is present and has the value "1".
+     * 
+     * @param key
+     * @return 
+     */
+    public boolean isTagTrue(String key) {
+        return "1".equals(getTag(key));
+    }
+    
+    /**
+     * Gets all tags as a {@code Map}, which is only created the first time
+     * this is called for the current line. Unlike the other parts of the
+     * message, the {@code Map} can be kept.
+     * 
+     * @return A {@code Map} of tag keys to unescaped values (empty if there
+     * are no tags)
+     */
+    public Map<String, String> getTags() {
+        if (tagMap == null) {
+            tagMap = new HashMap<>();
+            int pos = tags.start;
+            while (pos < tags.end) {
+                int end = indexOf(';', pos, tags.end);
+                if (end == -1) {
+                    end = tags.end;
+                }
+                int keyEnd = indexOf('=', pos, end);
+                if (keyEnd == -1) {
+                    tagMap.put(new String(data, pos, end - pos), "");
+                } else if (keyEnd > pos) {
+                    tagMap.put(new String(data, pos, keyEnd - pos),
+                            unescape(keyEnd + 1, end));
+                }
+                pos = end + 1;
+            }
+        }
+        return tagMap;
+    }
+    
+    private boolean regionEquals(int start, int end, String other) {
+        if (end - start != other.length()) {
+            return false;
+        }
+        for (int i=0;i<other.length();i++) {
+            if (data[start + i] != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Creates a {@code String} of the given tag value, replacing the escape
+     * sequences defined for tag values.
+     * 
+     * @param start
+     * @param end
+     * @return 
+     */
+    private String unescape(int start, int end) {
+        if (indexOf('\\', start, end) == -1) {
+            return new String(data, start, end - start);
+        }
+        StringBuilder b = new StringBuilder(end - start);
+        for (int i=start;i<end;i++) {
+            char c = data[i];
+            if (c == '\\' && i + 1 < end) {
+                i++;
+                switch (data[i]) {
+                    case ':':
+                        b.append(';');
+                        break;
+                    case 's':
+                        b.append(' ');
+                        break;
+                    case 'r':
+                        b.append('\r');
+                        break;
+                    case 'n':
+                        b.append('\n');
+                        break;
+                    default:
+                        b.append(data[i]);
+                }
+            } else if (c != '\\') {
+                b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    public boolean hasPrefix() {
+        return hasPrefix;
+    }
+
+    /**
+     * The prefix, without the leading ':', or an empty sequence if there was
+     * no prefix.
+     *
+     * @return
+     */
+    public View getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * The nick part of the prefix (nick!mail@host), or the whole prefix if it
+     * doesn't contain a nick.
+     *
+     * @return
+     */
+    public View getNick() {
+        int end = prefix.indexOf('!');
+        if (end == -1) {
+            return prefix;
+        }
+        return prefix.subSequence(0, end);
+    }
+
+    public View getCommand() {
+        return command;
+    }
+
+    /**
+     * Checks if this message has the given command, without creating a
+     * {@code String}.
+     *
+     * @param name The command to check against
+     * @return true if the command equals the given name
+     */
+    public boolean isCommand(String name) {
+        return command.contentEquals(name);
+    }
+
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    /**
+     * Gets the parameter with the given index, or an empty sequence if there
+     * is no such parameter.
+     *
+     * @param index
+     * @return
+     */
+    public View getParameter(int index) {
+        if (index < 0 || index >= parameterCount) {
+            return EMPTY;
+        }
+        return parameters[index];
+    }
+
+    public boolean hasTrailing() {
+        return hasTrailing;
+    }
+
+    /**
+     * The trailing parameter, without the leading ':', or an empty sequence
+     * if there was no trailing.
+     *
+     * @return
+     */
+    public View getTrailing() {
+        return trailing;
+    }
+
+    /**
+     * Creates a copy of the parameters as Strings.
+     *
+     * @return
+     */
+    public String[] getParameters() {
+        String[] result = new String[parameterCount];
+        for (int i=0;i<parameterCount;i++) {
+            result[i] = parameters[i].toString();
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return line.toString();
+    }
+
+    /**
+     * A part of the current line. This doesn't copy any data, so it is only
+     * valid until the next line is parsed into the message.
+     */
+    public static class View implements CharSequence {
+
+        private final IrcMessage message;
+        private final char[] fixed;
+        private int start;
+        private int end;
+
+        private View(IrcMessage message) {
+            this.message = message;
+            this.fixed = null;
+        }
+
+        private View(char[] fixed) {
+            this.message = null;
+            this.fixed = fixed;
+        }
+
+        private View(char[] fixed, int start, int end) {
+            this.message = null;
+            this.fixed = fixed;
+            this.start = start;
+            this.end = end;
+        }
+
+        private void set(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        private char[] data() {
+            return message != null ? message.data : fixed;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return data()[start + index];
+        }
+
+        public boolean isEmpty() {
+            return end == start;
+        }
+
+        /**
+         * Returns a new view on the same data. This view is not updated by
+         * the message anymore, but still references the same data, so it is
+         * still only valid until the next line is parsed.
+         *
+         * @param from
+         * @param to
+         * @return
+         */
+        @Override
+        public View subSequence(int from, int to) {
+            if (from < 0 || to > length() || from > to) {
+                throw new IndexOutOfBoundsException(from+"-"+to);
+            }
+            return new View(data(), start + from, start + to);
+        }
+
+        public int indexOf(char c) {
+            char[] data = data();
+            for (int i=start;i<end;i++) {
+                if (data[i] == c) {
+                    return i - start;
+                }
+            }
+            return -1;
+        }
+
+        public boolean startsWith(char c) {
+            return end > start && data()[start] == c;
+        }
+
+        public boolean startsWith(String prefix, int offset) {
+            if (offset < 0 || offset + prefix.length() > length()) {
+                return false;
+            }
+            char[] data = data();
+            for (int i=0;i<prefix.length();i++) {
+                if (data[start + offset + i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean contentEquals(String other) {
+            return other.length() == length() && startsWith(other, 0);
+        }
+        
+        public boolean contentEqualsIgnoreCase(String other) {
+            if (other.length() != length()) {
+                return false;
+            }
+            char[] data = data();
+            for (int i=0;i<other.length();i++) {
+                char a = data[start + i];
+                char b = other.charAt(i);
+                if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Creates a {@code String} with the contents of this view.
+         *
+         * @return
+         */
+        @Override
+        public String toString() {
+            return new String(data(), start, end - start);
+        }
+    }
+
+}
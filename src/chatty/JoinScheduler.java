@@ -0,0 +1,333 @@
+
+package chatty;
+
+import chatty.util.RateLimiter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+/**
+ * Joins channels in batches, putting several channels into a single
+ * comma-separated JOIN line per connection, while not joining more channels
+ * than allowed in any window of the configured number of seconds.
+ *
+ * Each channel is tracked until the join is confirmed, and joined again if
+ * there is no confirmation in time, up to a maximum number of attempts. Once
+ * all channels that were added in one go are joined (or failed), the
+ * listener is informed how long that took.
+ *
+ * @author tduva
+ */
+public class JoinScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(JoinScheduler.class.getName());
+
+    /**
+     * Maximum length of a JOIN line (IRC allows 512 including CR/LF).
+     */
+    private static final int MAX_LINE_LENGTH = 450;
+
+    /**
+     * How long to wait for a join to be confirmed before trying again.
+     */
+    private static final long JOIN_TIMEOUT = 15*1000;
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Delay between checking if channels can be joined, while there are
+     * channels waiting.
+     */
+    private static final long TICK = 200;
+
+    public interface JoinListener {
+
+        /**
+         * Gets the connection the channel should be joined on.
+         *
+         * @param channel
+         * @return The {@code Connection}, or {@code null} if the channel can't
+         * be joined yet (e.g. the connection isn't registered yet)
+         */
+        public Connection getJoinConnection(String channel);
+
+        /**
+         * Send a JOIN line on the given connection.
+         *
+         * @param connection
+         * @param channels Comma-separated channels
+         */
+        public void sendJoin(Connection connection, String channels);
+
+        /**
+         * All channels added since the scheduler was last idle have either
+         * been joined or failed to be joined.
+         *
+         * @param joined The number of channels that were joined
+         * @param failed The channels that couldn't be joined
+         * @param duration The time from adding the first channel until all
+         * were done, in milliseconds
+         */
+        public void joinsCompleted(int joined, Set<String> failed, long duration);
+    }
+
+    private final JoinListener listener;
+    private final Timer timer = new Timer("JoinScheduler", true);
+    private TimerTask task;
+
+    /**
+     * Channels not confirmed as joined yet, in the order they were added.
+     */
+    private final Map<String, PendingJoin> pending = new LinkedHashMap<>();
+
+    /**
+     * Limits the joins per seconds, in the same way as sending messages.
+     */
+    private final RateLimiter limiter = new RateLimiter(50, 15*1000);
+
+    // Current batch
+    private long batchStart = -1;
+    private int batchJoined;
+    private final Set<String> batchFailed = new HashSet<>();
+
+    public JoinScheduler(JoinListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Changes how many channels may be joined in the given number of seconds.
+     * If either is 0, joins are not limited. The channels already joined are
+     * still counted with the new limit.
+     *
+     * @param joins
+     * @param seconds
+     */
+    public synchronized void setJoinsPerSeconds(int joins, int seconds) {
+        limiter.setLimit(joins, seconds*1000L);
+    }
+
+    /**
+     * Sets the joins per seconds as a String in the format "joins/seconds".
+     * Invalid values are just ignored.
+     *
+     * @param joinsPerSeconds
+     */
+    public void setJoinsPerSeconds(String joinsPerSeconds) {
+        String split[] = joinsPerSeconds.split("/");
+        if (split.length == 2) {
+            try {
+                setJoinsPerSeconds(Integer.parseInt(split[0]),
+                        Integer.parseInt(split[1]));
+            } catch (NumberFormatException ex) {
+                // Do nothing
+            }
+        }
+    }
+
+    /**
+     * Adds a channel to be joined. If the channel is already waiting, it is
+     * joined again as soon as possible.
+     *
+     * @param channel The channel, with leading #
+     */
+    public synchronized void add(String channel) {
+        if (batchStart == -1) {
+            batchStart = System.currentTimeMillis();
+        }
+        pending.put(channel, new PendingJoin());
+        start();
+    }
+
+    /**
+     * The join of the channel was confirmed.
+     *
+     * @param channel
+     */
+    public void joined(String channel) {
+        synchronized(this) {
+            if (pending.remove(channel) == null) {
+                return;
+            }
+            batchJoined++;
+        }
+        checkCompleted();
+    }
+
+    /**
+     * Stop trying to join the channel (e.g. because it was closed).
+     *
+     * @param channel
+     */
+    public void remove(String channel) {
+        synchronized(this) {
+            pending.remove(channel);
+        }
+        checkCompleted();
+    }
+
+    /**
+     * Stop trying to join any channels, without informing the listener.
+     */
+    public synchronized void clear() {
+        pending.clear();
+        resetBatch();
+        stop();
+    }
+
+    /**
+     * Checks for channels that can be joined right away, instead of waiting
+     * for the next check (e.g. because a connection was just registered).
+     */
+    public synchronized void wakeup() {
+        if (!pending.isEmpty()) {
+            stop();
+            start();
+        }
+    }
+
+    private void start() {
+        if (task == null) {
+            task = new TimerTask() {
+
+                @Override
+                public void run() {
+                    tick();
+                }
+            };
+            timer.schedule(task, TICK, TICK);
+        }
+    }
+
+    private void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    /**
+     * Handles timeouts and sends JOIN lines for waiting channels, as far as
+     * the join limit allows.
+     */
+    private void tick() {
+        // Find channels to join (and retry timed out joins)
+        List<String> waiting = new ArrayList<>();
+        synchronized(this) {
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, PendingJoin>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, PendingJoin> entry = it.next();
+                PendingJoin join = entry.getValue();
+                if (join.sent > 0 && now - join.sent > JOIN_TIMEOUT) {
+                    if (join.attempts >= MAX_ATTEMPTS) {
+                        LOGGER.warning("Failed to join "+entry.getKey());
+                        batchFailed.add(entry.getKey());
+                        it.remove();
+                        continue;
+                    }
+                    LOGGER.info("Join timed out, trying again: "+entry.getKey());
+                    join.sent = 0;
+                }
+                if (join.sent == 0) {
+                    waiting.add(entry.getKey());
+                }
+            }
+        }
+
+        // Get connections outside of lock, since it accesses Irc
+        Map<String, Connection> connections = new LinkedHashMap<>();
+        for (String channel : waiting) {
+            Connection c = listener.getJoinConnection(channel);
+            if (c != null) {
+                connections.put(channel, c);
+            }
+        }
+
+        // Build lines within the join limit
+        Map<Connection, List<StringBuilder>> lines = new LinkedHashMap<>();
+        synchronized(this) {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Connection> entry : connections.entrySet()) {
+                String channel = entry.getKey();
+                PendingJoin join = pending.get(channel);
+                if (join == null || join.sent != 0) {
+                    continue;
+                }
+                if (!limiter.tryAcquire(now)) {
+                    break;
+                }
+                addToLine(lines, entry.getValue(), channel);
+                join.sent = now;
+                join.attempts++;
+            }
+        }
+        for (Map.Entry<Connection, List<StringBuilder>> entry : lines.entrySet()) {
+            for (StringBuilder line : entry.getValue()) {
+                listener.sendJoin(entry.getKey(), line.toString());
+            }
+        }
+        checkCompleted();
+    }
+
+    private static void addToLine(Map<Connection, List<StringBuilder>> lines,
+            Connection c, String channel) {
+        List<StringBuilder> forConnection = lines.get(c);
+        if (forConnection == null) {
+            forConnection = new ArrayList<>();
+            lines.put(c, forConnection);
+        }
+        StringBuilder line = forConnection.isEmpty() ? null
+                : forConnection.get(forConnection.size() - 1);
+        if (line == null || line.length() + channel.length() + 1 > MAX_LINE_LENGTH) {
+            line = new StringBuilder();
+            forConnection.add(line);
+        }
+        if (line.length() > 0) {
+            line.append(",");
+        }
+        line.append(channel);
+    }
+
+    /**
+     * Informs the listener if all channels of the current batch are done.
+     */
+    private void checkCompleted() {
+        int joined;
+        Set<String> failed;
+        long duration;
+        synchronized(this) {
+            if (!pending.isEmpty() || batchStart == -1) {
+                return;
+            }
+            stop();
+            joined = batchJoined;
+            failed = new HashSet<>(batchFailed);
+            duration = System.currentTimeMillis() - batchStart;
+            resetBatch();
+        }
+        listener.joinsCompleted(joined, failed, duration);
+    }
+
+    private void resetBatch() {
+        batchStart = -1;
+        batchJoined = 0;
+        batchFailed.clear();
+    }
+
+    private static class PendingJoin {
+
+        /**
+         * When the last JOIN for this channel was send, 0 if not yet send.
+         */
+        long sent;
+        int attempts;
+    }
+
+}
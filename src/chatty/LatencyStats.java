@@ -0,0 +1,117 @@
+
+package chatty;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent round-trip latency samples of a connection and
+ * provides percentiles over them, so that both the typical latency and
+ * occasional spikes can be seen.
+ *
+ * @author tduva
+ */
+public class LatencyStats {
+
+    /**
+     * How many samples are kept (older ones are overwritten).
+     */
+    private static final int SIZE = 100;
+
+    private final long[] samples = new long[SIZE];
+    private int count;
+    private int next;
+    private long last = -1;
+    private int lost;
+
+    /**
+     * Adds a new sample.
+     *
+     * @param latency The latency in milliseconds
+     */
+    public synchronized void add(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % SIZE;
+        if (count < SIZE) {
+            count++;
+        }
+        last = latency;
+    }
+
+    /**
+     * Counts a PING that never got a matching PONG.
+     */
+    public synchronized void addLost() {
+        lost++;
+    }
+
+    /**
+     * The number of PINGs that never got a matching PONG.
+     *
+     * @return
+     */
+    public synchronized int getLost() {
+        return lost;
+    }
+
+    /**
+     * The number of samples currently kept.
+     *
+     * @return
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * The most recent sample.
+     *
+     * @return The latency in milliseconds, or -1 if there are no samples yet
+     */
+    public synchronized long getLast() {
+        return last;
+    }
+
+    /**
+     * Gets the latency that the given percentage of samples are lower or
+     * equal to.
+     *
+     * @param percentile The percentile (0-100)
+     * @return The latency in milliseconds, or -1 if there are no samples yet
+     */
+    public synchronized long getPercentile(int percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return sorted[getIndex(percentile)];
+    }
+
+    public synchronized long getMax() {
+        return getPercentile(100);
+    }
+
+    private int getIndex(int percentile) {
+        int index = (int)Math.ceil(percentile / 100.0 * count) - 1;
+        return Math.max(0, Math.min(count - 1, index));
+    }
+
+    /**
+     * Gets the stats as a short text.
+     *
+     * @return
+     */
+    public synchronized String getStats() {
+        String lostText = lost > 0 ? ", "+lost+" lost" : "";
+        if (count == 0) {
+            return "Latency: -"+(lost > 0 ? " ("+lost+" lost)" : "");
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return String.format("Latency: %dms (p50 %dms, p95 %dms, p99 %dms, "
+                + "max %dms, %d samples%s)",
+                last, sorted[getIndex(50)], sorted[getIndex(95)],
+                sorted[getIndex(99)], sorted[count - 1], count, lostText);
+    }
+
+}
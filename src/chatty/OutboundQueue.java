@@ -0,0 +1,194 @@
+
+package chatty;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lines waiting to be written to a connection. Lines can be added from any
+ * thread without blocking, while writing is done by a single thread (the
+ * engine thread), which writes all lines that are pending at that point with
+ * a single gathering write.
+ *
+ * Also keeps some stats about the queue size and how long lines had to wait
+ * before they were completely written.
+ *
+ * @author tduva
+ */
+public class OutboundQueue {
+
+    /**
+     * The maximum number of lines written at once.
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * How much a new latency value affects the average (0-1).
+     */
+    private static final double AVERAGE_WEIGHT = 0.1;
+
+    private final Queue<Line> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    // Only accessed by the writing thread
+    private final Line[] batch = new Line[MAX_BATCH];
+    private final ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH];
+
+    // Stats
+    private volatile long lastLatency;
+    private volatile double averageLatency;
+    private volatile long maxLatency;
+    private volatile int maxSize;
+    private volatile long linesWritten;
+    private volatile long writes;
+
+    /**
+     * Adds a line to be written.
+     *
+     * @param data The encoded data
+     */
+    public void add(ByteBuffer data) {
+        queue.add(new Line(data, System.currentTimeMillis()));
+        int newSize = size.incrementAndGet();
+        if (newSize > maxSize) {
+            maxSize = newSize;
+        }
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * Writes as many of the pending lines as the channel accepts, using a
+     * single gathering write per batch of lines.
+     *
+     * @param channel The channel to write to
+     * @return true if all pending lines were written, false if the channel
+     * didn't accept all of the data
+     * @throws IOException If an error occured writing to the channel
+     */
+    public boolean write(GatheringByteChannel channel) throws IOException {
+        while (true) {
+            // Collect pending lines (the first one may be partially written)
+            int count = 0;
+            for (Line line : queue) {
+                if (count == MAX_BATCH) {
+                    break;
+                }
+                batch[count] = line;
+                buffers[count] = line.data;
+                count++;
+            }
+            if (count == 0) {
+                return true;
+            }
+            channel.write(buffers, 0, count);
+            writes++;
+
+            // Remove lines that were completely written
+            long now = System.currentTimeMillis();
+            boolean complete = true;
+            for (int i=0;i<count;i++) {
+                if (complete && !batch[i].data.hasRemaining()) {
+                    queue.poll();
+                    size.decrementAndGet();
+                    linesWritten++;
+                    updateLatency(now - batch[i].queued);
+                } else {
+                    complete = false;
+                }
+                batch[i] = null;
+                buffers[i] = null;
+            }
+            if (!complete) {
+                return false;
+            }
+        }
+    }
+
+    private void updateLatency(long latency) {
+        lastLatency = latency;
+        if (latency > maxLatency) {
+            maxLatency = latency;
+        }
+        averageLatency = averageLatency * (1 - AVERAGE_WEIGHT) + latency * AVERAGE_WEIGHT;
+    }
+
+    /**
+     * Removes all pending lines.
+     */
+    public void clear() {
+        queue.clear();
+        size.set(0);
+    }
+
+    /**
+     * The number of lines currently waiting to be written.
+     *
+     * @return
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    /**
+     * The maximum number of lines that have been waiting at the same time.
+     *
+     * @return
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * How long the last written line had to wait until it was completely
+     * written.
+     *
+     * @return The time in milliseconds
+     */
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    /**
+     * The moving average of the time lines had to wait.
+     *
+     * @return The time in milliseconds
+     */
+    public long getAverageLatency() {
+        return Math.round(averageLatency);
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    /**
+     * Gets the stats of this queue as a short text.
+     *
+     * @return
+     */
+    public String getStats() {
+        return String.format("Send queue: %d (max %d), latency: %dms "
+                + "(avg %dms, max %dms), %d lines in %d writes",
+                getSize(), maxSize, lastLatency, getAverageLatency(),
+                maxLatency, linesWritten, writes);
+    }
+
+    private static class Line {
+
+        private final ByteBuffer data;
+        private final long queued;
+
+        Line(ByteBuffer data, long queued) {
+            this.data = data;
+            this.queued = queued;
+        }
+    }
+
+}
@@ -0,0 +1,332 @@
+
+package chatty;
+
+import chatty.util.RateLimiter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Queues messages to be send to the server, so not more than the configured
+ * lines per seconds are send (to prevent being banned for spam). Instead of
+ * refusing messages when the limit is reached, they are queued and released
+ * as soon as allowed, so that never more than the configured number of lines
+ * are send in any window of the configured number of seconds.
+ *
+ * Queued moderation commands are released before queued chat messages.
+ *
+ * @author tduva
+ */
+public class SendScheduler {
+
+    /**
+     * Priority for moderation commands (timeouts, bans, ..).
+     */
+    public static final int PRIORITY_MODERATION = 0;
+    /**
+     * Priority for normal chat messages.
+     */
+    public static final int PRIORITY_CHAT = 1;
+
+    /**
+     * Gets the queued items that are released.
+     */
+    public interface SendListener {
+
+        /**
+         * The item can be send now. This may be called from the thread adding
+         * the item (if it can be send immediately) or from the timer thread.
+         *
+         * @param item The item to send
+         */
+        public void send(Item item);
+    }
+
+    private final SendListener listener;
+    private final PriorityQueue<Item> queue = new PriorityQueue<>();
+    private final Timer timer = new Timer("SendScheduler", true);
+    /**
+     * Makes sure items are given to the listener in the order they are taken
+     * from the queue.
+     */
+    private final Object sendLock = new Object();
+    private TimerTask scheduledRelease;
+
+    private final RateLimiter limiter = new RateLimiter(0, 0);
+    private int lines;
+    private int seconds;
+
+    private int idCounter;
+    private long seqCounter;
+
+    public SendScheduler(SendListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Changes the lines per seconds. If either lines or seconds is 0, then the
+     * spam protection is disabled altogether, and any queued items are
+     * released. The lines already send are still counted with the new
+     * limit.
+     *
+     * @param lines
+     * @param seconds
+     */
+    public void setLinesPerSeconds(int lines, int seconds) {
+        synchronized(this) {
+            this.lines = lines;
+            this.seconds = seconds;
+            limiter.setLimit(lines, seconds*1000L);
+        }
+        release();
+    }
+
+    /**
+     * Sets the lines per seconds as a String in the format "lines/seconds".
+     * Invalid values are just ignored.
+     *
+     * @param linesPerSeconds
+     */
+    public void setLinesPerSeconds(String linesPerSeconds) {
+        String split[] = linesPerSeconds.split("/");
+        if (split.length == 2) {
+            try {
+                Integer lines = Integer.parseInt(split[0]);
+                Integer seconds = Integer.parseInt(split[1]);
+                setLinesPerSeconds(lines, seconds);
+            } catch (NumberFormatException ex) {
+                // Do nothing
+            }
+        }
+    }
+
+    /**
+     * Adds an item to be send. If it is allowed to be send right away, then
+     * the listener is called with it before this returns.
+     *
+     * @param channel The channel to send to
+     * @param message The message to send
+     * @param echo What to output once send (depending on the type)
+     * @param type The type of message, defined by the caller
+     * @param priority The priority, lower values are send first
+     * @return The {@code Item}, which is already send if {@code isSent()}
+     * returns true
+     */
+    public Item add(String channel, String message, String echo, int type, int priority) {
+        Item item;
+        synchronized(this) {
+            item = new Item(++idCounter, seqCounter++, channel, message, echo,
+                    type, priority, System.currentTimeMillis());
+            queue.add(item);
+        }
+        release();
+        return item;
+    }
+
+    /**
+     * Removes the queued item with the given id.
+     *
+     * @param id
+     * @return The removed item, or {@code null} if no item with that id is
+     * queued (maybe it was already send)
+     */
+    public synchronized Item cancel(int id) {
+        for (Item item : queue) {
+            if (item.id == id) {
+                queue.remove(item);
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes all queued items.
+     *
+     * @return The number of items that were removed
+     */
+    public synchronized int cancelAll() {
+        int count = queue.size();
+        queue.clear();
+        return count;
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Gets the queued items in the order they will be send.
+     *
+     * @return A sorted copy of the queue
+     */
+    public synchronized List<Item> getQueue() {
+        List<Item> result = new ArrayList<>(queue);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Gets the estimated time until the given item is send, based on the
+     * items queued before it and assuming no items of a higher priority are
+     * added in the meantime.
+     *
+     * @param item
+     * @return The time in milliseconds, or -1 if the item is not queued
+     */
+    public synchronized long getEta(Item item) {
+        List<Item> sorted = getQueue();
+        int position = sorted.indexOf(item);
+        if (position == -1) {
+            return -1;
+        }
+        return getEta(position);
+    }
+
+    /**
+     * Gets the estimated time until the item at the given position in the
+     * queue can be send.
+     *
+     * @param position
+     * @return The time in milliseconds
+     */
+    private long getEta(int position) {
+        return limiter.getWaitTime(position, System.currentTimeMillis());
+    }
+
+    /**
+     * Sends as many queued items as allowed right now, and schedules the next
+     * release if there are still items left.
+     */
+    private void release() {
+        synchronized(sendLock) {
+            releaseInternal();
+        }
+    }
+    
+    private void releaseInternal() {
+        List<Item> toSend = new ArrayList<>();
+        synchronized(this) {
+            if (scheduledRelease != null) {
+                scheduledRelease.cancel();
+                scheduledRelease = null;
+            }
+            long now = System.currentTimeMillis();
+            while (!queue.isEmpty() && limiter.tryAcquire(now)) {
+                Item item = queue.poll();
+                item.sent = true;
+                toSend.add(item);
+            }
+            if (!queue.isEmpty()) {
+                scheduledRelease = new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        release();
+                    }
+                };
+                timer.schedule(scheduledRelease, Math.max(1, getEta(0)));
+            }
+        }
+        // Send outside of lock, in the order they were taken from the queue
+        for (Item item : toSend) {
+            listener.send(item);
+        }
+    }
+
+    /**
+     * Some info about the current state.
+     *
+     * @return
+     */
+    public synchronized String getInfo() {
+        if (!limiter.isEnabled()) {
+            return "Spam protection disabled";
+        }
+        return String.format("%d/%ds, send in last %ds: %d, queued: %d",
+                lines, seconds, seconds,
+                limiter.getCount(System.currentTimeMillis()), queue.size());
+    }
+
+    /**
+     * A message queued to be send.
+     */
+    public static class Item implements Comparable<Item> {
+
+        private final int id;
+        private final long seq;
+        private final String channel;
+        private final String message;
+        private final String echo;
+        private final int type;
+        private final int priority;
+        private final long queued;
+        private volatile boolean sent;
+
+        private Item(int id, long seq, String channel, String message,
+                String echo, int type, int priority, long queued) {
+            this.id = id;
+            this.seq = seq;
+            this.channel = channel;
+            this.message = message;
+            this.echo = echo;
+            this.type = type;
+            this.priority = priority;
+            this.queued = queued;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getChannel() {
+            return channel;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getEcho() {
+            return echo;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * When the item was added.
+         *
+         * @return The time in milliseconds
+         */
+        public long getQueued() {
+            return queued;
+        }
+
+        public boolean isSent() {
+            return sent;
+        }
+
+        @Override
+        public int compareTo(Item o) {
+            if (priority != o.priority) {
+                return priority < o.priority ? -1 : 1;
+            }
+            return Long.compare(seq, o.seq);
+        }
+
+        @Override
+        public String toString() {
+            return "#"+id+" "+channel+": "+message;
+        }
+    }
+
+}
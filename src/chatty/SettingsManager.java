@@ -31,7 +31,8 @@ public class SettingsManager {
         "saveChannelHistory",
         "historyClear",
         "autoScroll",
-        "bufferSize"
+        "bufferSize",
+        "channelsPerConnection"
     };
     
     public SettingsManager(Settings settings) {
@@ -65,6 +66,10 @@ public class SettingsManager {
         settings.addString("port", "", false);
         
         settings.addBoolean("tc3", false);
+        settings.addLong("channelsPerConnection", 0);
+        settings.addString("joinLimit", "50/15");
+        settings.addLong("pingTimeout", 20);
+        settings.addMap("connectTimes", new HashMap<>(), Setting.LONG);
         
         settings.addString("channel", "");
         settings.addString("username", "");
@@ -93,6 +98,9 @@ public class SettingsManager {
         settings.addString("deletedMessagesMode", "keepShortened");
         settings.addLong("deletedMessagesMaxLength", 50);
         settings.addLong("bufferSize", 250);
+        settings.addLong("userEvictionIdleTime", 30);
+        settings.addLong("userEvictionMaxUsers", 5000);
+        settings.addLong("userMessageHistory", 20);
         settings.addBoolean("twitchnotifyAsInfo", true);
         settings.addBoolean("printStreamStatus", true);
         
@@ -46,6 +46,11 @@ public class TwitchClient extends Irc {
      * The interval to check version in (seconds)
      */
     private static final int CHECK_VERSION_INTERVAL = 60*60*24*2;
+    
+    /**
+     * The interval to remove users that aren't needed anymore (seconds)
+     */
+    private static final int EVICT_USERS_INTERVAL = 60;
 
     /**
      * Holds the Settings object, which is used to store and retrieve renametings
@@ -141,7 +146,14 @@ public class TwitchClient extends Irc {
     private Webserver webserver;
     private final HotkeyManager hotkeyManager;
     private final SettingsManager settingsManager;
-    private final SpamProtection spamProtection;
+    private final SendScheduler sendScheduler;
+    
+    /**
+     * Types of messages queued in the SendScheduler.
+     */
+    private static final int SEND_MESSAGE = 0;
+    private static final int SEND_ACTION = 1;
+    private static final int SEND_COMMAND = 2;
     
     
     
@@ -189,8 +201,14 @@ public class TwitchClient extends Irc {
         statusHistory = new StatusHistory(settings);
         settings.addSettingsListener(statusHistory);
         
-        spamProtection = new SpamProtection();
-        spamProtection.setLinesPerSeconds(settings.getString("spamProtection"));
+        sendScheduler = new SendScheduler(new SendSchedulerListener());
+        sendScheduler.setLinesPerSeconds(settings.getString("spamProtection"));
+        setChannelsPerConnection((int)settings.getLong("channelsPerConnection"));
+        setJoinsPerSeconds(settings.getString("joinLimit"));
+        setPingTimeout((int)settings.getLong("pingTimeout"));
+        requestCapability("twitch.tv/tags", true);
+        setMembershipEvents(!settings.getBoolean("ignoreJoinsParts"));
+        setConnectTimes(loadConnectTimes());
         
         initDxSettings();
         
@@ -215,10 +233,18 @@ public class TwitchClient extends Irc {
         }
         
         users.setCapitalizedNames(settings.getBoolean("capitalizedNames"));
+        users.setMessageHistoryLength((int)settings.getLong("userMessageHistory"));
         users.setUsercolorManager(usercolorManager);
         users.setAddressbook(addressbook);
         
-        new UpdateTimer(g);
+        UpdateTimer updateTimer = new UpdateTimer(g);
+        updateTimer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                evictUsers();
+            }
+        }, EVICT_USERS_INTERVAL*1000, EVICT_USERS_INTERVAL*1000);
         
         // Hotkey
         hotkeyManager = new HotkeyManager(this, Chatty.HOTKEY);
@@ -233,6 +259,25 @@ public class TwitchClient extends Irc {
         g.openReleaseInfo();
     }
     
+    /**
+     * Gets the saved connect times from the settings, ignoring any entries
+     * that don't have the expected types.
+     * 
+     * @return A {@code Map} with "ip:port" as key and the connect time in
+     * milliseconds as value
+     */
+    private Map<String, Long> loadConnectTimes() {
+        Map<String, Long> result = new HashMap<>();
+        for (Object item : settings.getMap("connectTimes").entrySet()) {
+            Entry<?, ?> entry = (Entry<?, ?>)item;
+            if (entry.getKey() instanceof String
+                    && entry.getValue() instanceof Long) {
+                result.put((String)entry.getKey(), (Long)entry.getValue());
+            }
+        }
+        return result;
+    }
+    
 
     /**
      * Based on the current renametings, rename the system properties to disable
@@ -292,17 +337,60 @@ public class TwitchClient extends Irc {
     }
     
     @Override
-    void onConnect() {
+    void onConnectionEstablished(Connection connection) {
+        connection.send(getTwitchClientCommand());
+    }
+    
+    /**
+     * Sets the color, emotesets and status of the user directly from the
+     * tags, updating the userlist if the status changed.
+     * 
+     * @param channel
+     * @param nick
+     * @param message 
+     */
+    @Override
+    void onUserTags(String channel, String nick, IrcMessage message) {
+        User user = users.setUserTags(channel, nick, message);
+        if (user != null) {
+            g.userUpdated(user);
+            if (user.isOnline()) {
+                g.updateUser(channel, user);
+            }
+        }
+    }
+    
+    private String getTwitchClientCommand() {
         if (settings.getBoolean("tc3")) {
-            send("TWITCHCLIENT 3");
-        } else {
-            send("TWITCHCLIENT");
+            return "TWITCHCLIENT 3";
+        }
+        return "TWITCHCLIENT";
+    }
+    
+    /**
+     * One of the additional connections was lost, so the channels on it are
+     * not joined anymore until they are automatically joined again.
+     * 
+     * @param channels The channels that were on the connection
+     * @param reason
+     * @param reasonMessage 
+     */
+    @Override
+    void onShardDisconnect(Set<String> channels, int reason, String reasonMessage) {
+        for (String channel : channels) {
+            joinedChannels.remove(channel);
+            users.clear(channel);
+            g.clearUsers(channel);
+            g.printLine(channel, "Disconnected"
+                    + Helper.makeDisconnectReason(reason, reasonMessage)
+                    + " (only affects this channel, rejoining..)");
         }
     }
     
     @Override
     void onRegistered() {
         reconnectionAttempts = 0;
+        settings.putMap("connectTimes", getConnectTimes());
         if (!openChannels.isEmpty()) {
             joinChannels(openChannels);
         }
@@ -314,6 +402,40 @@ public class TwitchClient extends Irc {
         g.updateHighlightSetUsername(username);
     }
     
+    /**
+     * A PING was answered, so update the latency shown in the debug window.
+     * 
+     * @param connection
+     * @param latency 
+     */
+    @Override
+    void onLatency(Connection connection, long latency) {
+        String stats = getLatencyStats();
+        if (stats != null) {
+            g.setLatencyStats(stats);
+        }
+    }
+    
+    /**
+     * Outputs how long joining several channels took and which channels
+     * couldn't be joined.
+     * 
+     * @param joined
+     * @param failed
+     * @param duration 
+     */
+    @Override
+    void onJoinsCompleted(int joined, Set<String> failed, long duration) {
+        if (joined > 1) {
+            g.printLine(String.format("Joined %d channels in %.1fs",
+                    joined, duration / 1000.0));
+        }
+        if (!failed.isEmpty()) {
+            g.printLine("Failed to join (no response): "
+                    +Helper.buildStreamsString(failed));
+        }
+    }
+    
     /**
      * Close all channels except the ones in the given Array.
      * 
@@ -360,6 +482,10 @@ public class TwitchClient extends Irc {
         joinedChannels.clear();
         users.clear();
         g.printLineAll("Disconnected"+Helper.makeDisconnectReason(reason,reasonMessage));
+        int canceled = sendScheduler.cancelAll();
+        if (canceled > 0) {
+            g.printLineAll("Canceled "+canceled+" queued message(s)");
+        }
         g.clearUsers();
         
         if (reason != Irc.REQUESTED_DISCONNECT) {
@@ -512,9 +638,10 @@ public class TwitchClient extends Irc {
             } else {
                 text = Helper.removeDuplicateWhitespace(text);
                 text = Helper.htmlspecialchars_decode(text);
-                User user = userJoined(channel, nick);
+                User user = messageUser(channel, nick);
                 users.channelMessage(user);
                 g.printMessage(channel,user,text,false);
+                user.removeReference();
                 addressbookCommands(channel, user, text);
             }
         }
@@ -553,11 +680,26 @@ public class TwitchClient extends Irc {
     @Override
     void onChannelAction(String channel, String nick, String from, String text) {
         if (onChannel(channel)) {
-            User user = userJoined(channel, nick);
+            User user = messageUser(channel, nick);
             g.printMessage(channel, user, text, true);
+            user.removeReference();
         }
     }
     
+    /**
+     * Gets the User for a message and sets it as online. A reference is added
+     * to the User, so it isn't evicted before the message has been handed to
+     * the GUI (which then keeps it until the message is printed). The caller
+     * has to remove the reference afterwards.
+     * 
+     * @param channel
+     * @param nick
+     * @return The User, with a reference added
+     */
+    private User messageUser(String channel, String nick) {
+        return userJoined(users.getUserReferenced(channel, nick));
+    }
+    
     @Override
     void onNotice(String nick, String from, String text) {
         // Should only be from the server for now
@@ -731,6 +873,23 @@ public class TwitchClient extends Irc {
         }
     }
     
+    /**
+     * Removes users that are offline and haven't been active for a while,
+     * based on the settings. If joins/parts are ignored, users never go
+     * offline, so then online users that haven't been active are removed as
+     * well (and from the userlist).
+     */
+    private void evictUsers() {
+        long idleTime = settings.getLong("userEvictionIdleTime")*60*1000;
+        long maxUsers = settings.getLong("userEvictionMaxUsers");
+        boolean noMembership = settings.getBoolean("ignoreJoinsParts");
+        List<User> removed = users.evictUsers(idleTime,
+                (int)Math.min(maxUsers, Integer.MAX_VALUE), noMembership);
+        for (User user : removed) {
+            g.removeUser(user.getChannel(), user);
+        }
+    }
+    
     /**
      * Sets a user as online, add the user to the userlist if not already
      * online.
@@ -980,7 +1139,7 @@ public class TwitchClient extends Irc {
     }
 
     @Override
-    public void raw(String text) {
+    public void raw(CharSequence text) {
         if (settings.getBoolean("debugLogIrc")) {
             g.printDebugIrc("<< "+text);
         }
@@ -1013,46 +1172,34 @@ public class TwitchClient extends Irc {
     
     /**
      * Send a spam protected command to a channel, with the given echo message
-     * that will be displayed to the user.
+     * that will be displayed to the user once it is send. Commands are send
+     * before any queued chat messages.
      * 
      * @param channel The channel to send the message to
      * @param message The message to send (e.g. a moderation command)
      * @param echo The message to display to the user
      */
     public void sendCommandMessage(String channel, String message, String echo) {
-        if (sendSpamProtectedMessage(channel, message)) {
-            g.printLine(channel, echo);
-        } else {
-            g.printLine("# Command not sent to prevent ban: "+message);
-        }
+        sendSpamProtected(channel, message, echo, SEND_COMMAND,
+                SendScheduler.PRIORITY_MODERATION);
     }
     
     /**
-     * Tries to send a spam protected message, which will either be send or not,
-     * depending on the status of the spam protection.
+     * Sends a spam protected message, which is either send right away or
+     * queued until the spam protection allows it to be send. The message is
+     * output once it is actually send.
      * 
      * @param channel The channel to send the message to
      * @param message The message to send
-     * @return true if the message was send, false otherwise
      */
-    public boolean sendSpamProtectedMessage(String channel, String message) {
-        if (!spamProtection.check()) {
-            //g.printLine("# Message/command not send to prevent you from being banned.");
-            return false;
-        } else {
-            spamProtection.increase();
-            if (message.equals(".mods")) {
-                users.modsListRequested(channel);
-            }
-            super.sendMessage(channel, message);
-            return true;
-        }
+    public void sendSpamProtectedMessage(String channel, String message) {
+        sendSpamProtected(channel, message, null, SEND_MESSAGE,
+                SendScheduler.PRIORITY_CHAT);
     }
     
     /**
-     * Sends a spam protected action message, which is either send with the
-     * normal output or not send with a warning (if the spam protection doesn't
-     * allow it).
+     * Sends a spam protected action message, which is either send right away
+     * or queued until the spam protection allows it to be send.
      * 
      * @param channel The channel to send the message to
      * @param message The message
@@ -1060,29 +1207,116 @@ public class TwitchClient extends Irc {
     @Override
     public void sendActionMessage(String channel, String message) {
         if (onChannel(channel, true)) {
-            if (sendSpamProtectedActionMessage(channel, message)) {
-                g.printMessage(channel, userJoined(channel, username), message, true);
+            sendSpamProtected(channel, message, null, SEND_ACTION,
+                    SendScheduler.PRIORITY_CHAT);
+        }
+    }
+    
+    /**
+     * Adds the message to the SendScheduler and informs the user if it was
+     * queued instead of send right away.
+     * 
+     * @param channel
+     * @param message
+     * @param echo
+     * @param type
+     * @param priority 
+     */
+    private void sendSpamProtected(String channel, String message, String echo,
+            int type, int priority) {
+        SendScheduler.Item item = sendScheduler.add(channel, message, echo,
+                type, priority);
+        if (!item.isSent()) {
+            long eta = sendScheduler.getEta(item);
+            if (eta >= 0) {
+                g.printLine(channel, "# Queued to prevent ban [#"+item.getId()
+                        +", in "+formatEta(eta)+"]: "+message
+                        +" (/queue to show all, /cancel to remove)");
+            }
+        }
+    }
+    
+    private static String formatEta(long eta) {
+        return (eta + 999) / 1000 + "s";
+    }
+    
+    /**
+     * Actually sends the messages released by the SendScheduler and outputs
+     * them.
+     */
+    private class SendSchedulerListener implements SendScheduler.SendListener {
+
+        @Override
+        public void send(SendScheduler.Item item) {
+            String channel = item.getChannel();
+            String message = item.getMessage();
+            if (!onChannel(channel)) {
+                g.printLine("# Not sent (not in "+channel+" anymore): "+message);
+                return;
+            }
+            if (item.getType() == SEND_ACTION) {
+                TwitchClient.super.sendActionMessage(channel, message);
+                User user = messageUser(channel, username);
+                g.printMessage(channel, user, message, true);
+                user.removeReference();
             } else {
-                g.printLine("# Action Message not sent to prevent ban: " + message);
+                if (message.equals(".mods")) {
+                    users.modsListRequested(channel);
+                }
+                TwitchClient.super.sendMessage(channel, message);
+                if (item.getType() == SEND_COMMAND) {
+                    g.printLine(channel, item.getEcho());
+                } else {
+                    User user = messageUser(channel, username);
+                    g.printMessage(channel, user, message, false);
+                    user.removeReference();
+                }
             }
         }
     }
     
     /**
-     * Sends a spam protected action message, which may or may not be send,
-     * depending on the status of the spam protection.
+     * Outputs the queued messages with the estimated time until they are
+     * send.
+     */
+    private void commandQueue() {
+        List<SendScheduler.Item> queue = sendScheduler.getQueue();
+        if (queue.isEmpty()) {
+            g.printLine("No messages queued.");
+            return;
+        }
+        g.printLine(queue.size()+" message(s) queued:");
+        for (SendScheduler.Item item : queue) {
+            long eta = sendScheduler.getEta(item);
+            if (eta >= 0) {
+                g.printLine("#"+item.getId()+" ("+formatEta(eta)+") "
+                        +item.getChannel()+": "+item.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Removes one or all queued messages.
      * 
-     * @param channel The channel to send the message to
-     * @param message The message
-     * @return true if the message was send, false otherwise
+     * @param parameter The id of the message or "all"
      */
-    public boolean sendSpamProtectedActionMessage(String channel, String message) {
-        if (!spamProtection.check()) {
-            return false;
+    private void commandCancel(String parameter) {
+        if (parameter == null) {
+            g.printLine("Usage: /cancel <id|all>");
+        } else if (parameter.equals("all")) {
+            g.printLine("Canceled "+sendScheduler.cancelAll()+" queued message(s)");
         } else {
-            spamProtection.increase();
-            super.sendActionMessage(channel, message);
-            return true;
+            try {
+                SendScheduler.Item item = sendScheduler.cancel(
+                        Integer.parseInt(parameter.replace("#", "")));
+                if (item == null) {
+                    g.printLine("No queued message with id "+parameter);
+                } else {
+                    g.printLine("Canceled: "+item.getMessage());
+                }
+            } catch (NumberFormatException ex) {
+                g.printLine("Usage: /cancel <id|all>");
+            }
         }
     }
     
@@ -1195,11 +1429,7 @@ public class TwitchClient extends Irc {
         }
         else {
             if (onChannel(channel)) {
-                if (sendSpamProtectedMessage(channel, text)) {
-                    g.printMessage(channel,userJoined(channel,username),text,false);
-                } else {
-                    g.printLine("# Message not sent to prevent ban: "+text);
-                }
+                sendSpamProtectedMessage(channel, text);
             }
             else {
                 g.printLine("Not in a channel");
@@ -1278,6 +1508,12 @@ public class TwitchClient extends Irc {
         else if (command.equals("connection")) {
             g.printLine(getConnectionInfo());
         }
+        else if (command.equals("queue")) {
+            commandQueue();
+        }
+        else if (command.equals("cancel")) {
+            commandCancel(parameter);
+        }
         else if (command.equals("join")) {
             commandJoinChannel(parameter);
         }
@@ -1366,6 +1602,10 @@ public class TwitchClient extends Irc {
             g.printSystem(settings.resetTextual(parameter));
         }
         
+        else if (command.equals("userstats")) {
+            g.printSystem("[Users] "+users.getEvictionStats());
+        }
+        
         else if (command.equals("userlist")) {
             g.printSystem(addressbook.getEntries().toString());
         }
@@ -1440,7 +1680,7 @@ public class TwitchClient extends Irc {
                 g.addStreamInfo(testStreamInfo);
             }
             else if (command.equals("testspam")) {
-                g.printLine("test"+spamProtection.getAllowance()+spamProtection.tryMessage());
+                g.printLine(sendScheduler.getInfo());
             }
             else if (command.equals("tsv")) {
                 testStreamInfo.set("Title", "Game", Integer.parseInt(parameter));
@@ -1833,7 +2073,7 @@ public class TwitchClient extends Irc {
     }
     
     public void setLinesPerSeconds(String value) {
-        spamProtection.setLinesPerSeconds(value);
+        sendScheduler.setLinesPerSeconds(value);
     }
     
     private void version5Info() {
@@ -2,74 +2,93 @@
 package chatty;
 
 import chatty.gui.HtmlColors;
-import chatty.gui.NamedColor;
 import java.awt.Color;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a single user on a specific channel.
  * 
+ * The info that is the same in all channels (color, emotesets, turbo/admin/
+ * staff) is stored in a {@code UserIdentity} that can be shared between the
+ * {@code User} objects of the same name.
+ * 
+ * The status in the channel (moderator, subscriber, ..) is kept in an
+ * immutable {@code Status} object that is replaced when something changes, so
+ * it can be read (e.g. for sorting or rendering the userlist) without locking.
+ * 
  * @author tduva
  */
 public class User implements Comparable {
     
-    private static final NamedColor[] defaultColors = {
-        new NamedColor("Red", 255, 0, 0),
-        new NamedColor("Blue", 0, 0, 255),
-        new NamedColor("Green", 0, 255, 0),
-        new NamedColor("FireBrick", 178, 34, 34),
-        new NamedColor("Coral", 255, 127, 80),
-        new NamedColor("YellowGreen", 154, 205, 50),
-        new NamedColor("OrangeRed", 255, 69, 0),
-        new NamedColor("SeaGreen", 46, 139, 87),
-        new NamedColor("GoldenRod", 218, 165, 32),
-        new NamedColor("Chocolate", 210, 105, 30),
-        new NamedColor("CadetBlue", 95, 158, 160),
-        new NamedColor("DodgerBlue", 30, 144, 255),
-        new NamedColor("HotPink", 255, 105, 180),
-        new NamedColor("BlueViolet", 138, 43, 226),
-        new NamedColor("SpringGreen", 0, 255, 127)
-    };
-    
     private final String nick;
-    private String fullNick;
     private final String channel;
+    private final UserIdentity identity;
+    
+    /**
+     * Only replaced (while synchronized), never changed.
+     */
+    private volatile Status status;
     
-    private Addressbook addressbook;
+    private volatile Addressbook addressbook;
     
-    private UsercolorManager colorManager;
-    private Color color = HtmlColors.decode("");
-    private Color correctedColor = HtmlColors.decode("");
-    private boolean hasDefaultColor = true;
-    private boolean hasCorrectedColor = false;
-    private boolean hasChangedColor = false;
+    private volatile UsercolorManager colorManager;
+    private volatile Color correctedColor = HtmlColors.decode("");
+    private volatile boolean hasCorrectedColor = false;
+    private volatile boolean hasChangedColor = false;
     
-    private boolean online = false;
-    private boolean isModerator = false;
-    private boolean isBroadcaster = false;
-    private boolean isAdmin = false;
-    private boolean isStaff = false;
-    private boolean hasTurbo = false;
-    private boolean isSubscriber = false;
+    private volatile boolean online = false;
     
     private int probablySubscriber = 0;
     
-    private final Set<Integer> emoteSets = new HashSet<>();
-    private final List<Message> messages = new ArrayList<>();
+    /**
+     * The last messages of this user, stored in a ring buffer of arrays
+     * (instead of an object for each message). The arrays are only created
+     * when the first message is added and grow up to the maximum number of
+     * lines, since most users only write a few messages.
+     */
+    private long[] messageTimes;
+    private byte[] messageTypes;
+    private String[] messageTexts;
+    private int messagesStart;
+    private int messagesCount;
     
     private final long createdAt = System.currentTimeMillis();
+    private volatile long lastActivity = createdAt;
+    
+    /**
+     * How many things (e.g. the chat or an open dialog) still use this User,
+     * in which case it shouldn't be removed, even when offline.
+     */
+    private final AtomicInteger references = new AtomicInteger();
+    
     private int numberOfMessages = 0;
     private int numberOfLines = 0;
-    private static final int MAXLINES = 20;
+    public static final int DEFAULT_MAXLINES = 20;
+    private static final int INITIAL_LINES_CAPACITY = 4;
+    private final int maxLines;
     
     public User(String nick, String channel) {
+        this(nick, channel, new UserIdentity(nick), DEFAULT_MAXLINES);
+    }
+    
+    /**
+     * Creates a new user that shares the given identity with the other
+     * {@code User} objects of the same name.
+     * 
+     * @param nick
+     * @param channel
+     * @param identity 
+     * @param maxLines How many of the last messages to keep
+     */
+    User(String nick, String channel, UserIdentity identity, int maxLines) {
         this.nick = nick;
         this.channel = channel;
-        setDefaultColor();
-        updateFullNick();
+        this.identity = identity;
+        this.maxLines = Math.max(1, maxLines);
+        this.status = new Status(false, false, false);
     }
     
     public void setUsercolorManager(UsercolorManager manager) {
@@ -125,16 +144,53 @@ public class User implements Comparable {
         return createdAt;
     }
     
+    /**
+     * The last time this user wrote a message, got banned or joined/parted.
+     * 
+     * @return The time in milliseconds
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+    
+    /**
+     * Should be called when something starts using this User, so it isn't
+     * removed while it's used.
+     * 
+     * @see removeReference()
+     */
+    public void addReference() {
+        references.incrementAndGet();
+    }
+    
+    /**
+     * Should be called when something stops using this User.
+     * 
+     * @see addReference()
+     */
+    public void removeReference() {
+        references.decrementAndGet();
+    }
+    
+    /**
+     * Whether this User is still used somewhere.
+     * 
+     * @return 
+     */
+    public boolean isReferenced() {
+        return references.get() > 0;
+    }
+    
     public int getNumberOfMessages() {
         return numberOfMessages;
     }
     
     public int getMaxNumberOfLines() {
-        return MAXLINES;
+        return maxLines;
     }
     
-    public boolean maxNumberOfLinesReached() {
-        if (numberOfLines > MAXLINES) {
+    public synchronized boolean maxNumberOfLinesReached() {
+        if (numberOfLines > maxLines) {
             return true;
         }
         return false;
@@ -146,7 +202,7 @@ public class User implements Comparable {
      * @param line 
      */
     public synchronized void addMessage(String line) {
-        addLine(new TextMessage(System.currentTimeMillis(), line));
+        addLine(Message.MESSAGE, System.currentTimeMillis(), line);
         numberOfMessages++;
     }
     
@@ -154,37 +210,109 @@ public class User implements Comparable {
      * Adds a single ban with the current time.
      */
     public synchronized void addBan() {
-        addLine(new BanMessage(System.currentTimeMillis()));
+        addLine(Message.BAN, System.currentTimeMillis(), null);
     }
     
     /**
-     * Adds a Message.
+     * Adds a line, replacing the oldest one if the maximum number of lines is
+     * already stored.
      * 
-     * @param message The Message object containig the data for this line.
+     * @param type The type of the line, as in {@code Message}
+     * @param time The time of the line
+     * @param text The text of the line (only for messages)
      */
-    private void addLine(Message message) {
-        messages.add(message);
-        if (messages.size() > MAXLINES) {
-            messages.remove(0);
+    private void addLine(int type, long time, String text) {
+        lastActivity = time;
+        if (messageTimes == null) {
+            int capacity = Math.min(INITIAL_LINES_CAPACITY, maxLines);
+            messageTimes = new long[capacity];
+            messageTypes = new byte[capacity];
+            messageTexts = new String[capacity];
+        } else if (messagesCount == messageTimes.length
+                && messagesCount < maxLines) {
+            growLines(Math.min(messagesCount * 2, maxLines));
+        }
+        int capacity = messageTimes.length;
+        int index;
+        if (messagesCount < capacity) {
+            index = (messagesStart + messagesCount) % capacity;
+            messagesCount++;
+        } else {
+            // Full, so overwrite the oldest
+            index = messagesStart;
+            messagesStart = (messagesStart + 1) % capacity;
         }
+        messageTimes[index] = time;
+        messageTypes[index] = (byte)type;
+        messageTexts[index] = text;
         numberOfLines++;
     }
     
     /**
-     * Returns a copy of the current messages (defensive copying because it
-     * might be used while being modified concurrently).
+     * Copies the lines into larger arrays, with the oldest line first.
+     * 
+     * @param capacity The new capacity
+     */
+    private void growLines(int capacity) {
+        long[] times = new long[capacity];
+        byte[] types = new byte[capacity];
+        String[] texts = new String[capacity];
+        for (int i=0;i<messagesCount;i++) {
+            int index = (messagesStart + i) % messageTimes.length;
+            times[i] = messageTimes[index];
+            types[i] = messageTypes[index];
+            texts[i] = messageTexts[index];
+        }
+        messageTimes = times;
+        messageTypes = types;
+        messageTexts = texts;
+        messagesStart = 0;
+    }
+    
+    /**
+     * Returns the current messages, oldest first, as new objects (so they
+     * can be used while new messages are added concurrently).
      * 
      * @return 
      */
     public synchronized List<Message> getMessages() {
-        return new ArrayList<>(messages);
+        List<Message> result = new ArrayList<>(messagesCount);
+        for (int i=0;i<messagesCount;i++) {
+            int index = (messagesStart + i) % messageTimes.length;
+            if (messageTypes[index] == Message.BAN) {
+                result.add(new BanMessage(messageTimes[index]));
+            } else {
+                result.add(new TextMessage(messageTimes[index], messageTexts[index]));
+            }
+        }
+        return result;
     }
     
-    public synchronized String getNick() {
+    /**
+     * Roughly estimates how much memory this User uses, including the
+     * messages.
+     * 
+     * @return The estimated size in bytes
+     */
+    public synchronized long getEstimatedSize() {
+        long result = 200;
+        if (messageTimes != null) {
+            result += 60 + messageTimes.length * (8 + 1 + 4);
+            for (int i=0;i<messagesCount;i++) {
+                String text = messageTexts[(messagesStart + i) % messageTexts.length];
+                if (text != null) {
+                    result += 40 + text.length() * 2;
+                }
+            }
+        }
+        return result;
+    }
+    
+    public String getNick() {
         return nick;
     }
     
-    public synchronized Color getColor() {
+    public Color getColor() {
         if (colorManager != null) {
             Color result = colorManager.getColor(this);
             if (result != null) {
@@ -194,31 +322,30 @@ public class User implements Comparable {
                 hasChangedColor = false;
             }
         }
-        return color;
+        return identity.getColor();
     }
     
-    public synchronized Color getPlainColor() {
-        return color;
+    public Color getPlainColor() {
+        return identity.getColor();
     }
     
-    public synchronized boolean hasChangedColor() {
+    public boolean hasChangedColor() {
         return hasChangedColor;
     }
     
-    public synchronized Color getCorrectedColor() {
+    public Color getCorrectedColor() {
         return correctedColor;
     }
     
-    public synchronized boolean hasCorrectedColor() {
+    public boolean hasCorrectedColor() {
         return hasCorrectedColor;
     }
     
-    public synchronized void setColor(String htmlColor) {
-        hasDefaultColor = false;
-        color = HtmlColors.decode(htmlColor);
+    public void setColor(String htmlColor) {
+        identity.setColor(htmlColor);
     }
     
-    public synchronized void setCorrectedColor(Color color) {
+    public void setCorrectedColor(Color color) {
         correctedColor = color;
         hasCorrectedColor = true;
     }
@@ -228,30 +355,21 @@ public class User implements Comparable {
      * 
      * @return 
      */
-    public synchronized boolean hasDefaultColor() {
-        return hasDefaultColor;
-    }
-    
-    /**
-     * Sets the default color based on the nick. Based on what bGeorge posted.
-     */
-    private void setDefaultColor() {
-        String name = nick.toLowerCase();
-        int n = name.codePointAt(0) + name.codePointAt(name.length() - 1);
-        color = defaultColors[n % defaultColors.length];
-        hasDefaultColor = true;
+    public boolean hasDefaultColor() {
+        return identity.hasDefaultColor();
     }
     
-    public synchronized void setOnline(boolean online) {
+    public void setOnline(boolean online) {
         this.online = online;
+        lastActivity = System.currentTimeMillis();
     }
     
-    public synchronized boolean isOnline() {
+    public boolean isOnline() {
         return online;
     }
 
     @Override
-    public synchronized int compareTo(Object o) {
+    public int compareTo(Object o) {
         if (!(o instanceof User)) {
             return 0;
         }
@@ -294,11 +412,11 @@ public class User implements Comparable {
     }
     
     @Override
-    public synchronized String toString() {
-        return fullNick;
+    public String toString() {
+        return getStatus().fullNick;
     }
     
-    public synchronized void setMode(String mode) {
+    public void setMode(String mode) {
         if (mode.equals("o")) {
             setModerator(true);
         } else {
@@ -306,57 +424,52 @@ public class User implements Comparable {
         }
     }
 
-    public synchronized boolean isModerator() {
-        return isModerator;
+    public boolean isModerator() {
+        return status.moderator;
     }
     
-    public synchronized boolean isAdmin() {
-        return isAdmin;
+    public boolean isAdmin() {
+        return identity.isAdmin();
     }
     
-    public synchronized boolean isStaff() {
-        return isStaff;
+    public boolean isStaff() {
+        return identity.isStaff();
     }
     
-    public synchronized boolean isBroadcaster() {
-        return isBroadcaster;
+    public boolean isBroadcaster() {
+        return status.broadcaster;
     }
     
-    public synchronized boolean isSubscriber() {
-        return isSubscriber;
+    public boolean isSubscriber() {
+        return status.subscriber;
     }
     
-    public synchronized boolean hasTurbo() {
-        return hasTurbo;
+    public boolean hasTurbo() {
+        return identity.hasTurbo();
     }
     
     public synchronized void setModerator(boolean mod) {
-        isModerator = mod;
-        updateFullNick();
+        updateStatus(mod, status.broadcaster, status.subscriber);
     }
     
-    public synchronized void setAdmin(boolean admin) {
-        isAdmin = admin;
-        updateFullNick();
+    public void setAdmin(boolean admin) {
+        identity.setAdmin(admin);
     }
     
-    public synchronized void setStaff(boolean staff) {
-        isStaff = staff;
-        updateFullNick();
+    public void setStaff(boolean staff) {
+        identity.setStaff(staff);
     }
     
-    public synchronized void setTurbo(boolean turbo) {
-        hasTurbo = turbo;
-        updateFullNick();
+    public void setTurbo(boolean turbo) {
+        identity.setTurbo(turbo);
     }
     
     public synchronized void setSubscriber(boolean subscriber) {
-        isSubscriber = subscriber;
-        updateFullNick();
+        updateStatus(status.moderator, status.broadcaster, subscriber);
     }
     
     public synchronized void setProbablySubscriber() {
-        if (isSubscriber) {
+        if (status.subscriber) {
             return;
         }
         probablySubscriber++;
@@ -366,35 +479,43 @@ public class User implements Comparable {
     }
     
     public synchronized void setBroadcaster(boolean broadcaster) {
-        isBroadcaster = broadcaster;
-        updateFullNick();
+        updateStatus(status.moderator, broadcaster, status.subscriber);
     }
     
-    private void updateFullNick() {
-        fullNick = getModeSymbol()+nick;
+    /**
+     * Gets the current status, which is only created anew if turbo/admin/staff
+     * have been changed (possibly through another channel) since it was
+     * created.
+     * 
+     * @return 
+     */
+    private Status getStatus() {
+        Status current = status;
+        if (current.identityVersion != identity.getVersion()) {
+            synchronized(this) {
+                current = status;
+                if (current.identityVersion != identity.getVersion()) {
+                    current = updateStatus(current.moderator,
+                            current.broadcaster, current.subscriber);
+                }
+            }
+        }
+        return current;
     }
     
-    public synchronized String getModeSymbol() {
-        String result = "";
-        if (isSubscriber()) {
-            result += "%";
-        }
-        if (hasTurbo()) {
-            result += "+";
-        }
-        if (isAdmin()) {
-            return "!"+result;
-        }
-        if (isStaff()) {
-            return "!!"+result;
-        }
-        if (isBroadcaster()) {
-            return "~"+result;
-        }
-        if (isModerator()) {
-            return "@"+result;
-        }
-        return result;
+    /**
+     * Replaces the current status with a new one with the given values.
+     * 
+     * @return The new status
+     */
+    private synchronized Status updateStatus(boolean moderator,
+            boolean broadcaster, boolean subscriber) {
+        status = new Status(moderator, broadcaster, subscriber);
+        return status;
+    }
+    
+    public String getModeSymbol() {
+        return getStatus().modeSymbol;
     }
     
     /**
@@ -405,38 +526,80 @@ public class User implements Comparable {
      * 
      * @param newEmoteSets 
      */
-    public synchronized void setEmoteSets(String newEmoteSets) {
-        String[] split = newEmoteSets.split("[^0-9]");
-        emoteSets.clear();
-        for (String emoteSet : split) {
-            if (!emoteSet.isEmpty()) {
-                emoteSets.add(Integer.parseInt(emoteSet));
-            }
-        }
+    public void setEmoteSets(String newEmoteSets) {
+        identity.setEmoteSets(newEmoteSets);
     }
     
     /**
      * Gets a Set of Integer containing the emotesets available to this user.
-     * Defensive copying because it might be iterated over while being modified
-     * concurrently.
+     * The Set can't be modified and is replaced when the emotesets change, so
+     * it can be iterated over safely.
      * 
      * @return 
      */
-    public synchronized Set<Integer> getEmoteSet() {
-        return new HashSet<>(emoteSets);
+    public Set<Integer> getEmoteSet() {
+        return identity.getEmoteSets();
     }
     
-    
+    /**
+     * The status of the user in the channel and the nick with the mode symbol
+     * based on it.
+     */
+    private class Status {
+        
+        private final boolean moderator;
+        private final boolean broadcaster;
+        private final boolean subscriber;
+        
+        /**
+         * The version of the identity the mode symbol was created for.
+         */
+        private final int identityVersion;
+        private final String modeSymbol;
+        private final String fullNick;
+        
+        Status(boolean moderator, boolean broadcaster, boolean subscriber) {
+            this.moderator = moderator;
+            this.broadcaster = broadcaster;
+            this.subscriber = subscriber;
+            this.identityVersion = identity.getVersion();
+            this.modeSymbol = makeModeSymbol();
+            this.fullNick = modeSymbol+nick;
+        }
+        
+        private String makeModeSymbol() {
+            String result = "";
+            if (subscriber) {
+                result += "%";
+            }
+            if (identity.hasTurbo()) {
+                result += "+";
+            }
+            if (identity.isAdmin()) {
+                return "!"+result;
+            }
+            if (identity.isStaff()) {
+                return "!!"+result;
+            }
+            if (broadcaster) {
+                return "~"+result;
+            }
+            if (moderator) {
+                return "@"+result;
+            }
+            return result;
+        }
+    }
     
     public static class Message {
         
         public static final int MESSAGE = 0;
         public static final int BAN = 1;
         
-        private final Long time;
+        private final long time;
         private final int type;
         
-        public Message(int type, Long time) {
+        public Message(int type, long time) {
             this.time = time;
             this.type = type;
         }
@@ -453,7 +616,7 @@ public class User implements Comparable {
     public static class TextMessage extends Message {
         private final String text;
         
-        public TextMessage(Long time, String message) {
+        public TextMessage(long time, String message) {
             super(MESSAGE, time);
             this.text = message;
         }
@@ -464,7 +627,7 @@ public class User implements Comparable {
     }
     
     public static class BanMessage extends Message {
-        public BanMessage(Long time) {
+        public BanMessage(long time) {
             super(BAN, time);
         }
         
@@ -0,0 +1,222 @@
+
+package chatty;
+
+import chatty.gui.HtmlColors;
+import chatty.gui.NamedColor;
+import java.awt.Color;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The info about a user that is the same in all channels (color, emotesets,
+ * turbo/admin/staff), shared by the {@code User} objects of that user in the
+ * different channels, so it only has to be changed once.
+ * 
+ * Changes are synchronized, but reading doesn't require locking.
+ *
+ * @author tduva
+ */
+class UserIdentity {
+
+    private static final NamedColor[] defaultColors = {
+        new NamedColor("Red", 255, 0, 0),
+        new NamedColor("Blue", 0, 0, 255),
+        new NamedColor("Green", 0, 255, 0),
+        new NamedColor("FireBrick", 178, 34, 34),
+        new NamedColor("Coral", 255, 127, 80),
+        new NamedColor("YellowGreen", 154, 205, 50),
+        new NamedColor("OrangeRed", 255, 69, 0),
+        new NamedColor("SeaGreen", 46, 139, 87),
+        new NamedColor("GoldenRod", 218, 165, 32),
+        new NamedColor("Chocolate", 210, 105, 30),
+        new NamedColor("CadetBlue", 95, 158, 160),
+        new NamedColor("DodgerBlue", 30, 144, 255),
+        new NamedColor("HotPink", 255, 105, 180),
+        new NamedColor("BlueViolet", 138, 43, 226),
+        new NamedColor("SpringGreen", 0, 255, 127)
+    };
+
+    /**
+     * Parsed emotesets by the string they were parsed from, so the same
+     * (immutable) Set can be used for all users with the same emotesets,
+     * which is the case for most users.
+     */
+    private static final ConcurrentHashMap<String, Set<Integer>> internedEmoteSets
+            = new ConcurrentHashMap<>();
+    
+    /**
+     * How many different emotesets strings to keep at most, to prevent it
+     * from growing indefinitely in the unlikely case of many different ones.
+     */
+    private static final int INTERNED_EMOTESETS_MAX = 5000;
+    
+    private volatile Color color;
+    private volatile boolean hasDefaultColor = true;
+    private volatile boolean isAdmin = false;
+    private volatile boolean isStaff = false;
+    private volatile boolean hasTurbo = false;
+
+    /**
+     * Replaced when changed, so it can be returned without copying.
+     */
+    private volatile Set<Integer> emoteSets = Collections.emptySet();
+    private String emoteSetsString;
+
+    /**
+     * Increased whenever something changes that affects the displayed nick.
+     */
+    private volatile int version;
+    
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /**
+     * Creates a new identity.
+     *
+     * @param name The name of the user, used for the default color
+     */
+    UserIdentity(String name) {
+        setDefaultColor(name);
+    }
+
+    /**
+     * Sets the default color based on the nick. Based on what bGeorge posted.
+     */
+    private void setDefaultColor(String nick) {
+        String name = nick.toLowerCase();
+        int n = name.codePointAt(0) + name.codePointAt(name.length() - 1);
+        color = defaultColors[n % defaultColors.length];
+        hasDefaultColor = true;
+    }
+
+    public Color getColor() {
+        return color;
+    }
+
+    public synchronized void setColor(String htmlColor) {
+        color = HtmlColors.decode(htmlColor);
+        hasDefaultColor = false;
+    }
+
+    public boolean hasDefaultColor() {
+        return hasDefaultColor;
+    }
+
+    public boolean isAdmin() {
+        return isAdmin;
+    }
+
+    public boolean isStaff() {
+        return isStaff;
+    }
+
+    public boolean hasTurbo() {
+        return hasTurbo;
+    }
+
+    public synchronized void setAdmin(boolean admin) {
+        if (isAdmin != admin) {
+            isAdmin = admin;
+            version++;
+        }
+    }
+
+    public synchronized void setStaff(boolean staff) {
+        if (isStaff != staff) {
+            isStaff = staff;
+            version++;
+        }
+    }
+
+    public synchronized void setTurbo(boolean turbo) {
+        if (hasTurbo != turbo) {
+            hasTurbo = turbo;
+            version++;
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+    
+    /**
+     * Remembers the current time as the time this was last used.
+     */
+    public void setUsed() {
+        lastUsed = System.currentTimeMillis();
+    }
+    
+    /**
+     * The last time this was used, so it can be removed if it wasn't used in
+     * a while and no User is using it.
+     * 
+     * @return The time in milliseconds
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Sets the emotesets.
+     *
+     * Splits at any character that is not a number, but usually it should
+     * be a string like: [1,5,39]
+     *
+     * @param newEmoteSets
+     */
+    public synchronized void setEmoteSets(String newEmoteSets) {
+        if (newEmoteSets.equals(emoteSetsString)) {
+            // Usually sent with every message, but rarely changes
+            return;
+        }
+        emoteSetsString = newEmoteSets;
+        emoteSets = getInternedEmoteSets(newEmoteSets);
+    }
+    
+    /**
+     * Gets the Set of emotesets for the given string, which is only parsed if
+     * it hasn't been parsed before.
+     * 
+     * @param emoteSetsString
+     * @return An immutable Set
+     */
+    private static Set<Integer> getInternedEmoteSets(String emoteSetsString) {
+        Set<Integer> result = internedEmoteSets.get(emoteSetsString);
+        if (result == null) {
+            result = parseEmoteSets(emoteSetsString);
+            if (internedEmoteSets.size() > INTERNED_EMOTESETS_MAX) {
+                internedEmoteSets.clear();
+            }
+            Set<Integer> previous = internedEmoteSets.putIfAbsent(emoteSetsString, result);
+            if (previous != null) {
+                result = previous;
+            }
+        }
+        return result;
+    }
+    
+    private static Set<Integer> parseEmoteSets(String emoteSetsString) {
+        String[] split = emoteSetsString.split("[^0-9]");
+        Set<Integer> result = new HashSet<>();
+        for (String emoteSet : split) {
+            if (!emoteSet.isEmpty()) {
+                result.add(Integer.parseInt(emoteSet));
+            }
+        }
+        if (result.isEmpty()) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Gets the emotesets, which can't be modified.
+     *
+     * @return
+     */
+    public Set<Integer> getEmoteSets() {
+        return emoteSets;
+    }
+
+}
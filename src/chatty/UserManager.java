@@ -3,12 +3,17 @@ package chatty;
 
 import java.util.Map.Entry;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
  * Provides methods to get a (maybe new) User object for a channel/username 
  * combination and search for User objects by channel, username etc.
  * 
+ * Getting existing User objects doesn't require locking, since this is done
+ * for every message. Adding and removing User objects locks only for the
+ * name, so the maps by channel and by name stay consistent.
+ * 
  * @author tduva
  */
 public class UserManager {
@@ -34,25 +39,68 @@ public class UserManager {
      */
     private static final int MODLIST_VALID_TIME = 5*1000;
     
-    private final HashMap<String, HashMap<String, User>> users = new HashMap<>();
-    private final HashMap<String, String> cachedEmoteSets = new HashMap<>();
-    private final HashMap<String, String> cachedColors = new HashMap<>();
-    private final HashSet<String> cachedTurbo = new HashSet<>();
-    private final HashSet<String> cachedAdmin = new HashSet<>();
-    private final HashSet<String> cachedStaff = new HashSet<>();
-    private final HashMap<String, Long> cachedSubscriber = new HashMap<>();
+    /**
+     * User objects by channel and name.
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, User>> users = new ConcurrentHashMap<>();
+    
+    /**
+     * The same User objects by name and channel, so the channels a name is in
+     * can be found without going through all channels.
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, User>> usersByName = new ConcurrentHashMap<>();
+    
+    /**
+     * The info that is the same in all channels by name. This is kept even
+     * when there is no User object for the name at the moment, so it is still
+     * there when a User for the name is created.
+     */
+    private final ConcurrentHashMap<String, UserIdentity> identities = new ConcurrentHashMap<>();
+    
+    /**
+     * Locks for adding/removing User objects, chosen by the name.
+     */
+    private final Object[] nameLocks = new Object[16];
+    
+    /**
+     * Roughly how much memory the info of one name uses.
+     */
+    private static final int IDENTITY_SIZE_ESTIMATE = 150;
+    
+    private long evictedUsers;
+    private long evictedIdentities;
+    private long evictedSize;
+    
+    private final ConcurrentHashMap<String, Long> cachedSubscriber = new ConcurrentHashMap<>();
     private final HashMap<String, Long> modsListRequested = new HashMap<>();
-    private boolean capitalizedNames = false;
+    private volatile boolean capitalizedNames = false;
+    private volatile int messageHistoryLength = User.DEFAULT_MAXLINES;
     
     private final User errorUser = new User("[Error]", "#[error]");
 
-    private UsercolorManager usercolorManager;
-    private Addressbook addressbook;
+    private volatile UsercolorManager usercolorManager;
+    private volatile Addressbook addressbook;
+    
+    public UserManager() {
+        for (int i=0;i<nameLocks.length;i++) {
+            nameLocks[i] = new Object();
+        }
+    }
     
     public void setCapitalizedNames(boolean capitalized) {
         capitalizedNames = capitalized;
     }
     
+    /**
+     * Sets how many of the last messages are kept for each User. Only
+     * affects Users created after this.
+     * 
+     * @param length 
+     */
+    public void setMessageHistoryLength(int length) {
+        messageHistoryLength = length;
+    }
+    
     public void setUsercolorManager(UsercolorManager manager) {
         usercolorManager = manager;
     }
@@ -67,14 +115,21 @@ public class UserManager {
      * @param channel
      * @return 
      */
-    public synchronized HashMap<String, User> getUsersByChannel(String channel) {
-        HashMap<String, User> result = users.get(channel);
+    public Map<String, User> getUsersByChannel(String channel) {
+        ConcurrentHashMap<String, User> result = users.get(channel);
         if (result == null) {
-            result = new HashMap<>();
-            users.put(channel, result);
+            result = new ConcurrentHashMap<>();
+            ConcurrentHashMap<String, User> previous = users.putIfAbsent(channel, result);
+            if (previous != null) {
+                result = previous;
+            }
         }
         return result;
     }
+    
+    private Object getNameLock(String name) {
+        return nameLocks[(name.hashCode() & 0x7fffffff) % nameLocks.length];
+    }
 
     /**
      * Searches all channels for the given username and returns a List of all
@@ -83,17 +138,32 @@ public class UserManager {
      * @param name The username to search for
      * @return The List of User-objects.
      */
-    public synchronized List<User> getUsersByName(String name) {
-        List<User> result = new ArrayList<>();
-        Iterator<HashMap<String, User>> it = users.values().iterator();
-        while (it.hasNext()) {
-            HashMap<String, User> channelUsers = it.next();
-            User user = channelUsers.get(name.toLowerCase());
-            if (user != null) {
-                result.add(user);
+    public List<User> getUsersByName(String name) {
+        Map<String, User> channelUsers = usersByName.get(name.toLowerCase());
+        if (channelUsers == null) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(channelUsers.values());
+    }
+    
+    /**
+     * Gets the info that is the same in all channels for the given name,
+     * creating it if necessary.
+     * 
+     * @param name The name of the user, already lowercase
+     * @return 
+     */
+    private UserIdentity getIdentity(String name) {
+        UserIdentity identity = identities.get(name);
+        if (identity == null) {
+            identity = new UserIdentity(name);
+            UserIdentity previous = identities.putIfAbsent(name, identity);
+            if (previous != null) {
+                identity = previous;
             }
         }
-        return result;
+        identity.setUsed();
+        return identity;
     }
 
     /**
@@ -105,41 +175,63 @@ public class UserManager {
      * @return The matching User object
      * @see User
      */
-    public synchronized User getUser(String channel, String name) {
+    public User getUser(String channel, String name) {
         // Not sure if this makes sense
         if (name == null || name.isEmpty()) {
             return errorUser;
         }
         name = name.toLowerCase();
-        User user = (User) getUsersByChannel(channel).get(name);
-        if (user == null) {
+        User user = getUsersByChannel(channel).get(name);
+        if (user != null) {
+            return user;
+        }
+        synchronized(getNameLock(name)) {
+            // Check again, it may have been added in the meantime
+            user = getUsersByChannel(channel).get(name);
+            if (user != null) {
+                return user;
+            }
             String displayedName = name;
             if (capitalizedNames) {
                 displayedName = name.substring(0, 1).toUpperCase() + name.substring(1);
             }
-            user = new User(displayedName, channel);
+            user = new User(displayedName, channel, getIdentity(name),
+                    messageHistoryLength);
             user.setUsercolorManager(usercolorManager);
             user.setAddressbook(addressbook);
-            // Initialize some values if present for this name
-            if (cachedEmoteSets.containsKey(name)) {
-                user.setEmoteSets(cachedEmoteSets.get(name));
-            }
-            if (cachedColors.containsKey(name)) {
-                user.setColor(cachedColors.get(name));
-            }
-            if (cachedAdmin.contains(name)) {
-                user.setAdmin(true);
-            }
-            if (cachedStaff.contains(name)) {
-                user.setStaff(true);
-            }
-            if (cachedTurbo.contains(name)) {
-                user.setTurbo(true);
-            }
-            // Put User into the map for the channel
+            // Put User into the map for the channel and the name
             getUsersByChannel(channel).put(name, user);
+            ConcurrentHashMap<String, User> channelUsers = usersByName.get(name);
+            if (channelUsers == null) {
+                channelUsers = new ConcurrentHashMap<>();
+                usersByName.put(name, channelUsers);
+            }
+            channelUsers.put(channel, user);
+            return user;
+        }
+    }
+    
+    /**
+     * Gets the User like {@link #getUser(String, String)}, but also adds a
+     * reference to it while holding the lock that evicting the User requires,
+     * so it can't be evicted until the reference is removed again.
+     *
+     * @param channel
+     * @param name The name of the user
+     * @return The matching User object, with a reference added
+     * @see User#removeReference()
+     */
+    public User getUserReferenced(String channel, String name) {
+        if (name == null || name.isEmpty()) {
+            User user = getUser(channel, name);
+            user.addReference();
+            return user;
+        }
+        synchronized(getNameLock(name.toLowerCase())) {
+            User user = getUser(channel, name);
+            user.addReference();
+            return user;
         }
-        return user;
     }
     
     /**
@@ -149,36 +241,40 @@ public class UserManager {
      * @param name The username to be searched for
      * @return A Map with channel->User association
      */
-    public synchronized HashMap<String,User> getChannelsAndUsersByUserName(String name) {
-        HashMap<String,User> result = new HashMap<>();
-        
-        Iterator<Entry<String, HashMap<String, User>>> it = users.entrySet().iterator();
-        while (it.hasNext()) {
-            Entry<String, HashMap<String, User>> channel = it.next();
-            
-            String channelName = channel.getKey();
-            HashMap<String,User> channelUsers = channel.getValue();
-            
-            User user = channelUsers.get(name.toLowerCase());
-            if (user != null) {
-                result.put(channelName,user);
-            }
+    public HashMap<String,User> getChannelsAndUsersByUserName(String name) {
+        Map<String, User> channelUsers = usersByName.get(name.toLowerCase());
+        if (channelUsers == null) {
+            return new HashMap<>();
         }
-        return result;
+        return new HashMap<>(channelUsers);
     }
     
-    public synchronized void clear() {
-        users.clear();
+    public void clear() {
+        for (String channel : users.keySet()) {
+            clear(channel);
+        }
     }
     
-    public synchronized void clear(String channel) {
-        getUsersByChannel(channel).clear();
+    public void clear(String channel) {
+        Map<String, User> channelUsers = getUsersByChannel(channel);
+        for (String name : channelUsers.keySet()) {
+            synchronized(getNameLock(name)) {
+                channelUsers.remove(name);
+                Map<String, User> byName = usersByName.get(name);
+                if (byName != null) {
+                    byName.remove(channel);
+                    if (byName.isEmpty()) {
+                        usersByName.remove(name);
+                    }
+                }
+            }
+        }
     }
     
-    public synchronized void setAllOffline() {
-        Iterator<HashMap<String,User>> it = users.values().iterator();
+    public void setAllOffline() {
+        Iterator<ConcurrentHashMap<String,User>> it = users.values().iterator();
         while (it.hasNext()) {
-            HashMap<String,User> channel = it.next();
+            Map<String,User> channel = it.next();
             for (User user : channel.values()) {
                 user.setOnline(false);
             }
@@ -186,12 +282,122 @@ public class UserManager {
     }
     
     
-    protected synchronized void setEmoteSetForUsername(String userName, String emoteSet) {
-        cachedEmoteSets.put(userName.toLowerCase(),emoteSet);
-        List<User> userAllChans = getUsersByName(userName);
-        for (User user : userAllChans) {
-            user.setEmoteSets(emoteSet);
+    /**
+     * Removes User objects that are offline (unless includeOnline is true)
+     * and not used anymore, so they don't accumulate over time. Users that
+     * weren't active for the given time are removed, and if there are more than the given number of Users
+     * in a channel, the ones that were inactive the longest are removed as
+     * well. The info about names without any User objects left is also
+     * removed after the given time.
+     * 
+     * @param idleTime How long (in milliseconds) a User has to be inactive to
+     * be removed
+     * @param maxUsers How many Users can be in a channel before inactive ones
+     * are removed regardless of the time
+     * @param includeOnline Whether to also remove Users that are online, for
+     * when there are no joins/parts, so Users would otherwise never go offline
+     * @return The removed Users that were online (so they can be removed from
+     * the userlist)
+     */
+    public synchronized List<User> evictUsers(long idleTime, int maxUsers,
+            boolean includeOnline) {
+        long now = System.currentTimeMillis();
+        List<User> removedOnline = new ArrayList<>();
+        for (String channel : users.keySet()) {
+            Map<String, User> channelUsers = getUsersByChannel(channel);
+            List<User> candidates = new ArrayList<>();
+            for (User user : channelUsers.values()) {
+                if (isEvictable(user, includeOnline)) {
+                    candidates.add(user);
+                }
+            }
+            // Least recently active first
+            Collections.sort(candidates, new Comparator<User>() {
+
+                @Override
+                public int compare(User o1, User o2) {
+                    return Long.compare(o1.getLastActivity(), o2.getLastActivity());
+                }
+            });
+            int size = channelUsers.size();
+            for (User user : candidates) {
+                if (now - user.getLastActivity() < idleTime && size <= maxUsers) {
+                    break;
+                }
+                boolean online = user.isOnline();
+                if (evictUser(channel, user, includeOnline)) {
+                    size--;
+                    if (online) {
+                        removedOnline.add(user);
+                    }
+                }
+            }
+        }
+        Iterator<Entry<String, UserIdentity>> it = identities.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<String, UserIdentity> entry = it.next();
+            String name = entry.getKey();
+            synchronized(getNameLock(name)) {
+                if (!usersByName.containsKey(name)
+                        && now - entry.getValue().getLastUsed() > idleTime) {
+                    it.remove();
+                    evictedIdentities++;
+                    evictedSize += IDENTITY_SIZE_ESTIMATE;
+                }
+            }
+        }
+        return removedOnline;
+    }
+    
+    private static boolean isEvictable(User user, boolean includeOnline) {
+        return (includeOnline || !user.isOnline()) && !user.isReferenced();
+    }
+    
+    /**
+     * Removes the given User, unless it has been used in the meantime.
+     * 
+     * @return true if the User was removed, false otherwise
+     */
+    private boolean evictUser(String channel, User user, boolean includeOnline) {
+        String name = user.getNick().toLowerCase();
+        synchronized(getNameLock(name)) {
+            if (!isEvictable(user, includeOnline)) {
+                return false;
+            }
+            if (!getUsersByChannel(channel).remove(name, user)) {
+                return false;
+            }
+            Map<String, User> byName = usersByName.get(name);
+            if (byName != null) {
+                byName.remove(channel);
+                if (byName.isEmpty()) {
+                    usersByName.remove(name);
+                }
+            }
+        }
+        evictedUsers++;
+        evictedSize += user.getEstimatedSize();
+        return true;
+    }
+    
+    /**
+     * Info about how many Users are stored and how many have been removed.
+     * 
+     * @return 
+     */
+    public synchronized String getEvictionStats() {
+        int count = 0;
+        for (Map<String, User> channelUsers : users.values()) {
+            count += channelUsers.size();
         }
+        return String.format("%d users in %d channels, %d names. Removed: "
+                + "%d users, %d names (about %d KB)",
+                count, users.size(), identities.size(),
+                evictedUsers, evictedIdentities, evictedSize / 1024);
+    }
+    
+    protected void setEmoteSetForUsername(String userName, String emoteSet) {
+        getIdentity(userName.toLowerCase()).setEmoteSets(emoteSet);
     }
     
     /**
@@ -200,14 +406,8 @@ public class UserManager {
      * @param userName String The name of the user
      * @param color String The color as a string representation
      */
-    protected synchronized void setColorForUsername(String userName, String color) {
-        userName = userName.toLowerCase();
-        cachedColors.put(userName,color);
-        
-        List<User> userAllChans = getUsersByName(userName);
-        for (User user : userAllChans) {
-            user.setColor(color);
-        }
+    protected void setColorForUsername(String userName, String color) {
+        getIdentity(userName.toLowerCase()).setColor(color);
     }
     
     /**
@@ -217,46 +417,83 @@ public class UserManager {
      * @param type 
      * @param singleChannel Whether only one channel was open.
      */
-    protected synchronized void userSetSpecialUser(String userName, String type, String channel) {
+    protected void userSetSpecialUser(String userName, String type, String channel) {
         userName = userName.toLowerCase();
-        List<User> userAllChans;
-        if (channel == null) {
-             userAllChans = getUsersByName(userName);
-        } else {
-            userAllChans = new ArrayList<>();
-            userAllChans.add(getUser(channel, userName));
-        }
-        
-        for (User user : userAllChans) {
-            if (type.equals("admin")) {
-                user.setAdmin(true);
-            } else if (type.equals("staff")) {
-                user.setStaff(true);
-            } else if (type.equals("turbo")) {
-                user.setTurbo(true);
-            } else if (type.equals("subscriber")) {
-                if (channel != null) {
-                    user.setSubscriber(true);
-                }
-            }
+        User user = null;
+        if (channel != null) {
+            user = getUser(channel, userName);
         }
+        // Admin, staff and turbo are the same in all channels
         switch (type) {
             case "admin":
-                cachedAdmin.add(userName);
+                getIdentity(userName).setAdmin(true);
                 break;
             case "staff":
-                cachedStaff.add(userName);
+                getIdentity(userName).setStaff(true);
                 break;
             case "turbo":
-                cachedTurbo.add(userName);
+                getIdentity(userName).setTurbo(true);
                 break;
             case "subscriber":
+                if (user != null) {
+                    user.setSubscriber(true);
+                }
                 cachedSubscriber.put(userName, System.currentTimeMillis());
         }
     }
     
     
-    protected synchronized void channelMessage(User user) {
+    /**
+     * Applies the user info from the IRCv3 tags of a message, which contain
+     * the color, emotesets and status of the user directly, instead of in
+     * separate jtv messages.
+     * 
+     * @param channel The channel the tags are for, or {@code null} if not
+     * channel-specific (only global info is set then)
+     * @param userName The name of the user
+     * @param message The message containing the tags, of which only the
+     * needed ones are read
+     * @return The {@code User} if the status (mod, subscriber, ..) in the
+     * channel changed, {@code null} otherwise
+     */
+    protected User setUserTags(String channel, String userName,
+            IrcMessage message) {
+        String color = message.getTag("color");
+        if (color != null && !color.isEmpty()) {
+            setColorForUsername(userName, color);
+        }
+        String emoteSets = message.getTag("emote-sets");
+        if (emoteSets != null) {
+            setEmoteSetForUsername(userName, emoteSets);
+        }
+        String userType = message.getTag("user-type");
+        if ("admin".equals(userType) || "staff".equals(userType)) {
+            userSetSpecialUser(userName, userType, null);
+        }
+        if (channel == null) {
+            return null;
+        }
+        User user = getUser(channel, userName);
+        String before = user.getModeSymbol();
+        String mod = message.getTag("mod");
+        if (mod != null || userType != null) {
+            user.setModerator("1".equals(mod) || "mod".equals(userType));
+        }
+        String subscriber = message.getTag("subscriber");
+        if (subscriber != null) {
+            user.setSubscriber("1".equals(subscriber));
+        }
+        String turbo = message.getTag("turbo");
+        if (turbo != null) {
+            user.setTurbo("1".equals(turbo));
+        }
+        if (before.equals(user.getModeSymbol())) {
+            return null;
+        }
+        return user;
+    }
+    
+    protected void channelMessage(User user) {
         if (cachedSubscriber.isEmpty()) {
             return;
         }
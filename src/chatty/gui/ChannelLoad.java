@@ -0,0 +1,177 @@
+
+package chatty.gui;
+
+/**
+ * Measures the message rate of a channel and determines how much of the
+ * messages should be shown, so a channel with an extreme amount of messages
+ * doesn't make the whole client lag.
+ *
+ * With an increasing rate, first emoticons are shown as text, then only
+ * some of the messages are shown. Highlighted and own messages should always
+ * be shown fully, which is up to the caller.
+ *
+ * Can be used from several threads.
+ *
+ * @author tduva
+ */
+public class ChannelLoad {
+
+    /**
+     * Everything is shown.
+     */
+    public static final int NORMAL = 0;
+
+    /**
+     * Emoticons are shown as text.
+     */
+    public static final int NO_EMOTICONS = 1;
+
+    /**
+     * Emoticons are shown as text and only some messages are shown.
+     */
+    public static final int SAMPLED = 2;
+
+    /**
+     * The rates (messages per second) at which the modes are entered.
+     */
+    private static final int NO_EMOTICONS_RATE = 100;
+    private static final int SAMPLED_RATE = 300;
+
+    /**
+     * The percentage of the rate of a mode the rate has to go below to leave
+     * it again, so it doesn't switch too often.
+     */
+    private static final int RECOVER_PERCENTAGE = 70;
+
+    /**
+     * About how many messages per second are still shown when sampling.
+     */
+    private static final int SAMPLED_SHOWN_RATE = 100;
+
+    /**
+     * The time over which the rate is measured.
+     */
+    private static final long INTERVAL = 1000;
+
+    private long intervalStart;
+    private int intervalCount;
+    private int rate;
+    private int mode = NORMAL;
+    private int reportedMode = NORMAL;
+    private int sampleCount;
+    private int skipped;
+
+    /**
+     * Counts a message and updates the mode if necessary.
+     *
+     * @param time The current time in milliseconds
+     * @return The current mode
+     */
+    public synchronized int addMessage(long time) {
+        update(time);
+        intervalCount++;
+        return mode;
+    }
+
+    /**
+     * Updates the rate and mode once the current interval is over. This is
+     * also done when a message is added, but should be called regularly, so
+     * it also changes when no messages are added anymore.
+     *
+     * @param time The current time in milliseconds
+     */
+    public synchronized void update(long time) {
+        long passed = time - intervalStart;
+        if (passed >= INTERVAL) {
+            rate = (int)(intervalCount * 1000 / passed);
+            intervalStart = time;
+            intervalCount = 0;
+            mode = getMode(rate);
+        }
+    }
+
+    private int getMode(int rate) {
+        if (rate >= SAMPLED_RATE || (mode == SAMPLED
+                && rate >= SAMPLED_RATE * RECOVER_PERCENTAGE / 100)) {
+            return SAMPLED;
+        }
+        if (rate >= NO_EMOTICONS_RATE || (mode >= NO_EMOTICONS
+                && rate >= NO_EMOTICONS_RATE * RECOVER_PERCENTAGE / 100)) {
+            return NO_EMOTICONS;
+        }
+        return NORMAL;
+    }
+
+    /**
+     * Checks if a regular message should be shown, which is always the case
+     * unless messages are sampled. Messages that are not shown are counted.
+     *
+     * @return true if the message should be shown, false otherwise
+     */
+    public synchronized boolean shouldShow() {
+        if (mode != SAMPLED) {
+            return true;
+        }
+        int every = (rate + SAMPLED_SHOWN_RATE - 1) / SAMPLED_SHOWN_RATE;
+        if (++sampleCount >= every) {
+            sampleCount = 0;
+            return true;
+        }
+        skipped++;
+        return false;
+    }
+
+    /**
+     * Gets the number of messages not shown since this was last called.
+     *
+     * @return
+     */
+    public synchronized int takeSkipped() {
+        int result = skipped;
+        skipped = 0;
+        return result;
+    }
+
+    public synchronized int getMode() {
+        return mode;
+    }
+
+    /**
+     * Checks if the mode changed since this was last called.
+     *
+     * @return The new mode, or -1 if it didn't change
+     */
+    public synchronized int takeModeChange() {
+        if (mode != reportedMode) {
+            reportedMode = mode;
+            return mode;
+        }
+        return -1;
+    }
+
+    /**
+     * The message rate measured in the last interval.
+     *
+     * @return The rate in messages per second
+     */
+    public synchronized int getRate() {
+        return rate;
+    }
+
+    /**
+     * Gets a description of the given mode.
+     *
+     * @param mode
+     * @return
+     */
+    public static String getModeText(int mode) {
+        switch (mode) {
+            case NO_EMOTICONS:
+                return "emoticons shown as text";
+            case SAMPLED:
+                return "emoticons shown as text, only some messages shown";
+        }
+        return "normal";
+    }
+
+}
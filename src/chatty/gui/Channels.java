@@ -33,6 +33,17 @@ public class Channels {
      */
     private final Set<Channel> highlighted = new HashSet<>();
     
+    /**
+     * Channels whose state is new status, which is shown in the title.
+     */
+    private final Set<Channel> newStatus = new HashSet<>();
+    
+    /**
+     * Info about the message rate of channels that don't show all messages
+     * normally because of it, which is shown in the title.
+     */
+    private final Map<Channel, String> loadInfo = new HashMap<>();
+    
     public Channels(MainGui gui, StyleManager styleManager,
             ContextMenuListener contextMenuListener) {
         tabs = new Tabs(contextMenuListener);
@@ -81,8 +92,9 @@ public class Channels {
      */
     public void resetChannelTab(Channel channel) {
         tabs.setForegroundForComponent(channel, null);
-        tabs.setTitleForComponent(channel, channel.getName());
         highlighted.remove(channel);
+        newStatus.remove(channel);
+        updateTitle(channel);
     }
     
     /**
@@ -93,8 +105,41 @@ public class Channels {
      */
     public void setChannelNewStatus(Channel channel) {
         if (getActiveChannel() != channel) {
-            tabs.setTitleForComponent(channel, channel.getName()+"*");
+            newStatus.add(channel);
+            updateTitle(channel);
+        }
+    }
+    
+    /**
+     * Set info about the message rate of the channel, which is shown in the
+     * title of the tab.
+     * 
+     * @param channel
+     * @param info The short info to show in the title, or {@code null} to
+     * remove it
+     * @param description The longer description to show as tooltip, or
+     * {@code null} to remove it
+     */
+    public void setChannelLoad(Channel channel, String info, String description) {
+        if (info == null) {
+            loadInfo.remove(channel);
+        } else {
+            loadInfo.put(channel, info);
+        }
+        updateTitle(channel);
+        tabs.setToolTipForComponent(channel, description);
+    }
+    
+    private void updateTitle(Channel channel) {
+        String title = channel.getName();
+        if (newStatus.contains(channel)) {
+            title += "*";
+        }
+        String info = loadInfo.get(channel);
+        if (info != null) {
+            title += " ["+info+"]";
         }
+        tabs.setTitleForComponent(channel, title);
     }
     
     
@@ -223,6 +268,9 @@ public class Channels {
             return;
         }
         channels.remove(channel);
+        highlighted.remove(panel);
+        newStatus.remove(panel);
+        loadInfo.remove(panel);
         tabs.removeTab(panel);
         if (tabs.getTabCount() == 0) {
             addDefaultChannel();
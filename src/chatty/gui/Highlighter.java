@@ -35,7 +35,7 @@ public class Highlighter {
      * 
      * @param newItems 
      */
-    public void update(List<String> newItems) {
+    public synchronized void update(List<String> newItems) {
         items.clear();
         for (String item : newItems) {
             if (item != null && !item.isEmpty()) {
@@ -49,7 +49,7 @@ public class Highlighter {
      * 
      * @param username 
      */
-    public void setUsername(String username) {
+    public synchronized void setUsername(String username) {
         if (username == null) {
             usernamePattern = null;
         }
@@ -69,15 +69,15 @@ public class Highlighter {
      * 
      * @param highlighted 
      */
-    public void setHighlightUsername(boolean highlighted) {
+    public synchronized void setHighlightUsername(boolean highlighted) {
         this.highlightUsername = highlighted;
     }
     
-    public void setHighlightNextMessages(boolean highlight) {
+    public synchronized void setHighlightNextMessages(boolean highlight) {
         this.highlightNextMessages = highlight;
     }
     
-    public boolean check(User fromUser, String text) {
+    public synchronized boolean check(User fromUser, String text) {
         if (checkMatch(fromUser, text)) {
             addMatch(fromUser.getNick());
             return true;
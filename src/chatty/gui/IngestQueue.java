@@ -0,0 +1,249 @@
+
+package chatty.gui;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Collects the updates that have to be performed on the EDT (new messages,
+ * joins/parts, ..) and performs them in batches, instead of posting a
+ * separate event for each of them. Each batch only runs for a limited time,
+ * so the GUI can still repaint and react to input in between.
+ *
+ * If the GUI falls behind, join/part lines are skipped and other messages can
+ * be collapsed (which is up to the task, see {@link #isOverloaded()}), while
+ * important updates are always performed. The queue is bounded, so if it is
+ * full, join/part lines are dropped right away.
+ *
+ * @author tduva
+ */
+public class IngestQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(IngestQueue.class.getName());
+
+    /**
+     * Updates that should never be skipped (highlights, own messages,
+     * moderation, info messages).
+     */
+    public static final int IMPORTANT = 0;
+
+    /**
+     * Chat messages, which may be collapsed by the task if overloaded.
+     */
+    public static final int MESSAGE = 1;
+
+    /**
+     * Join/part lines in chat, which are skipped if overloaded. Changes that
+     * have to be performed for the GUI to be correct (like the userlist) must
+     * not use this.
+     */
+    public static final int MEMBERSHIP = 2;
+
+    /**
+     * How many updates may be queued. Important updates are always added,
+     * messages may exceed this up to {@link #HARD_CAPACITY}.
+     */
+    private static final int CAPACITY = 5000;
+    private static final int HARD_CAPACITY = CAPACITY * 2;
+
+    /**
+     * How long a batch may run, in milliseconds.
+     */
+    private static final long TIME_BUDGET = 25;
+
+    /**
+     * How many updates may be waiting (or how long the oldest may have been
+     * waiting) before the queue is considered overloaded.
+     */
+    private static final int OVERLOAD_SIZE = 500;
+    private static final long OVERLOAD_LAG = 2000;
+
+    /**
+     * Informed when the queue becomes overloaded or recovers.
+     */
+    public interface OverloadListener {
+
+        /**
+         * Called on the EDT when the overloaded state changes.
+         *
+         * @param overloaded
+         */
+        public void overloadChanged(boolean overloaded);
+    }
+
+    private final ArrayDeque<Item> queue = new ArrayDeque<>();
+    private final OverloadListener listener;
+    private boolean scheduled;
+
+    // Only accessed on the EDT
+    private boolean overloaded;
+
+    // Stats
+    private volatile long lag;
+    private volatile long maxLag;
+    private volatile int maxSize;
+    private volatile long dropped;
+    private volatile long shed;
+
+    private final Runnable drain = new Runnable() {
+
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public IngestQueue(OverloadListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds an update to be performed on the EDT.
+     *
+     * @param type The type of update, which determines if it may be skipped
+     * @param task The update
+     * @return true if the update was added, false if it was dropped because
+     * the queue is full
+     */
+    public boolean add(int type, Runnable task) {
+        synchronized(this) {
+            if (queue.size() >= CAPACITY && type != IMPORTANT) {
+                if (type == MEMBERSHIP || (!removeMembership()
+                        && queue.size() >= HARD_CAPACITY)) {
+                    dropped++;
+                    return false;
+                }
+            }
+            queue.add(new Item(type, task));
+            if (queue.size() > maxSize) {
+                maxSize = queue.size();
+            }
+            if (scheduled) {
+                return true;
+            }
+            scheduled = true;
+        }
+        SwingUtilities.invokeLater(drain);
+        return true;
+    }
+
+    /**
+     * Removes the oldest join/part update, to make room for a more important
+     * one.
+     *
+     * @return true if an update was removed
+     */
+    private boolean removeMembership() {
+        Iterator<Item> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().type == MEMBERSHIP) {
+                it.remove();
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the queue is currently overloaded, which means tasks for chat
+     * messages should only perform what is necessary. Only valid on the EDT.
+     *
+     * @return
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * Performs queued updates until the time budget is used up, after which
+     * another batch is scheduled if there are updates left.
+     */
+    private void drain() {
+        long start = System.currentTimeMillis();
+        while (true) {
+            Item item;
+            int size;
+            synchronized(this) {
+                item = queue.poll();
+                size = queue.size();
+                if (item == null) {
+                    scheduled = false;
+                    break;
+                }
+            }
+            lag = start - item.added;
+            if (lag > maxLag) {
+                maxLag = lag;
+            }
+            if (overloaded) {
+                // Only recover once it caught up a bit, to not switch too often
+                setOverloaded(size > OVERLOAD_SIZE / 2 || lag > OVERLOAD_LAG / 2);
+            } else {
+                setOverloaded(size > OVERLOAD_SIZE || lag > OVERLOAD_LAG);
+            }
+            if (overloaded && item.type == MEMBERSHIP) {
+                shed++;
+                continue;
+            }
+            try {
+                item.task.run();
+            } catch (Exception ex) {
+                LOGGER.warning("Error performing update: "+ex);
+            }
+            if (System.currentTimeMillis() - start > TIME_BUDGET) {
+                // Continue later, so other events can be handled
+                SwingUtilities.invokeLater(drain);
+                return;
+            }
+        }
+        setOverloaded(false);
+    }
+
+    private void setOverloaded(boolean overloaded) {
+        if (this.overloaded != overloaded) {
+            this.overloaded = overloaded;
+            LOGGER.info("Ingest queue "+(overloaded ? "overloaded" : "recovered")
+                    +" ("+getStats()+")");
+            listener.overloadChanged(overloaded);
+        }
+    }
+
+    public synchronized int getSize() {
+        return queue.size();
+    }
+
+    /**
+     * How long the last performed update had to wait.
+     *
+     * @return The time in milliseconds
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    /**
+     * Gets the stats as a short text.
+     *
+     * @return
+     */
+    public String getStats() {
+        return String.format("GUI queue: %d (max %d), lag: %dms (max %dms), "
+                + "skipped: %d, dropped: %d",
+                getSize(), maxSize, lag, maxLag, shed, dropped);
+    }
+
+    private static class Item {
+
+        private final int type;
+        private final Runnable task;
+        private final long added = System.currentTimeMillis();
+
+        Item(int type, Runnable task) {
+            this.type = type;
+            this.task = task;
+        }
+    }
+}
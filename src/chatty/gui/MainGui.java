@@ -11,6 +11,7 @@ import chatty.gui.components.TokenDialog;
 import chatty.gui.components.AdminDialog;
 import chatty.gui.components.ConnectionDialog;
 import chatty.gui.components.Channel;
+import chatty.gui.components.Specials;
 import chatty.gui.components.TokenGetDialog;
 import chatty.gui.components.HotKeyChooserListener;
 import chatty.gui.components.FavoritesDialog;
@@ -93,6 +94,35 @@ public class MainGui extends JFrame implements Runnable {
     
     // Helpers
     private final Highlighter highlighter = new Highlighter();
+    
+    /**
+     * Updates from the client that are performed on the EDT in batches.
+     */
+    private final IngestQueue ingest = new IngestQueue(new MyOverloadListener());
+    
+    /**
+     * Prepares messages outside of the EDT, keeping the order per channel.
+     */
+    private final MessagePipeline pipeline = new MessagePipeline();
+    
+    /**
+     * Number of messages per channel not shown while the ingest queue was
+     * overloaded or full (synchronized on itself).
+     */
+    private final Map<String, Integer> collapsedMessages = new HashMap<>();
+    
+    /**
+     * Userlist changes per channel that haven't been performed yet, with only
+     * the last change (added or removed) for each user, so they can be
+     * performed together and always result in the current state.
+     */
+    private final Map<String, Map<User, Boolean>> userlistChanges = new HashMap<>();
+    
+    /**
+     * The message rate of each channel, which determines how much of the
+     * messages are shown.
+     */
+    private final Map<String, ChannelLoad> channelLoads = new HashMap<>();
     private StyleManager styleManager;
     private TrayIconManager trayIcon;
     private final StateUpdater state = new StateUpdater();
@@ -160,6 +190,16 @@ public class MainGui extends JFrame implements Runnable {
         actionListener = new MyActionListener();
         
         debugWindow = new DebugWindow(new DebugCheckboxListener());
+        new javax.swing.Timer(1000, new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (debugWindow.isShowing()) {
+                    debugWindow.setIngestStats(ingest.getStats());
+                }
+                updateChannelLoads();
+            }
+        }).start();
         connectionDialog = new ConnectionDialog(this);
         tokenDialog = new TokenDialog(this);
         tokenGetDialog = new TokenGetDialog(this);
@@ -1116,6 +1156,10 @@ public class MainGui extends JFrame implements Runnable {
             @Override
             public void run() {
                 channels.removeChannel(channel);
+                pipeline.removeChannel(channel);
+                synchronized(channelLoads) {
+                    channelLoads.remove(channel);
+                }
                 state.update();
             }
         });
@@ -1290,42 +1334,250 @@ public class MainGui extends JFrame implements Runnable {
     
     public void printMessage(final String channel, final User user,
             final String text, final boolean action) {
-        SwingUtilities.invokeLater(new Runnable() {
+        String ownUsername = client.getUsername();
+        final boolean ownMessage = ownUsername != null
+                && ownUsername.equalsIgnoreCase(user.getNick());
+        // Keep the User until the message is printed (or not shown)
+        user.addReference();
+        pipeline.execute(channel, new Runnable() {
             @Override
             public void run() {
-                client.chatLog.message(channel, user, text);
-                Channel chan = channels.getChannel(channel);
-                boolean highlighted = false;
-                if (client.settings.getBoolean("highlightEnabled")) {
-                    String ownUsername = client.getUsername();
-                    if (client.settings.getBoolean("highlightOwnText")
-                            || ownUsername == null
-                            || !ownUsername.equalsIgnoreCase(user.getNick())) {
-                        highlighted = highlighter.check(user, text);
+                boolean added = false;
+                try {
+                    added = prepareMessage(channel, user, text, action, ownMessage);
+                } finally {
+                    if (!added) {
+                        user.removeReference();
                     }
                 }
-                if (highlighted) {
-                    highlightedMessages.addMessage(channel, user, text, action);
-                    playHighlightSound(channel);
-                    showHighlightNotification(channel, user, text);
-                } else {
-                    messageSound(channel);
+            }
+        });
+    }
+    
+    /**
+     * Does everything for a message that doesn't have to be done on the EDT
+     * (logging, highlighting, finding links and emoticons), and then adds it
+     * to be printed on the EDT. Runs on a {@link MessagePipeline} thread.
+     * 
+     * @param channel
+     * @param user
+     * @param text
+     * @param action
+     * @param ownMessage 
+     * @return true if the message was added to be printed, in which case the
+     * reference to the User is removed after that, false otherwise
+     */
+    private boolean prepareMessage(final String channel, final User user,
+            final String text, final boolean action, final boolean ownMessage) {
+        client.chatLog.message(channel, user, text);
+        boolean highlight = false;
+        if (client.settings.getBoolean("highlightEnabled")) {
+            if (client.settings.getBoolean("highlightOwnText")
+                    || !ownMessage) {
+                highlight = highlighter.check(user, text);
+            }
+        }
+        final boolean highlighted = highlight;
+        user.addMessage(text);
+        
+        // Show less if there are a lot of messages in this channel
+        ChannelLoad load = getChannelLoad(channel);
+        int loadMode = load.addMessage(System.currentTimeMillis());
+        boolean important = highlighted || ownMessage;
+        if (!important && !load.shouldShow()) {
+            return false;
+        }
+        final Specials specials = Specials.find(text, user,
+                important || loadMode == ChannelLoad.NORMAL ? emoticons : null);
+        
+        int ingestType = highlighted || ownMessage
+                ? IngestQueue.IMPORTANT : IngestQueue.MESSAGE;
+        boolean added = ingest.add(ingestType, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    printPreparedMessage(channel, user, text, action,
+                            highlighted, ownMessage, specials);
+                } finally {
+                    user.removeReference();
                 }
-                chan.printMessage(user, text, action, highlighted);
-                user.addMessage(text);
-                updateUserInfoDialog(user);
-                
-                if (highlighted) {
-                    channels.setChannelHighlighted(chan);
-                } else {
-                    channels.setChannelNewMessage(chan);
+            }
+        });
+        if (!added) {
+            // Queue is full, so the user is told about it when it recovers
+            collapseMessage(channel);
+        }
+        return added;
+    }
+    
+    /**
+     * Prints a message that has been prepared. Runs on the EDT.
+     */
+    private void printPreparedMessage(String channel, User user, String text,
+            boolean action, boolean highlighted, boolean ownMessage,
+            Specials specials) {
+        Channel chan = channels.getChannel(channel);
+        if (!highlighted && !ownMessage && ingest.isOverloaded()) {
+            // Falling behind, so only keep track of the message
+            collapseMessage(channel);
+            return;
+        }
+        if (highlighted) {
+            highlightedMessages.addMessage(channel, user, text, action);
+            playHighlightSound(channel);
+            showHighlightNotification(channel, user, text);
+        } else {
+            messageSound(channel);
+        }
+        chan.printMessage(user, text, action, highlighted, specials);
+        updateUserInfoDialog(user);
+        
+        if (highlighted) {
+            channels.setChannelHighlighted(chan);
+        } else {
+            channels.setChannelNewMessage(chan);
+        }
+    }
+    
+    private ChannelLoad getChannelLoad(String channel) {
+        synchronized(channelLoads) {
+            ChannelLoad load = channelLoads.get(channel);
+            if (load == null) {
+                load = new ChannelLoad();
+                channelLoads.put(channel, load);
+            }
+            return load;
+        }
+    }
+    
+    /**
+     * Updates the message rate of all channels, shows how many messages
+     * were not shown and informs the user if the mode of a channel changed.
+     * Should be run regularly on the EDT.
+     */
+    private void updateChannelLoads() {
+        Map<String, ChannelLoad> loads;
+        synchronized(channelLoads) {
+            loads = new HashMap<>(channelLoads);
+        }
+        long time = System.currentTimeMillis();
+        for (Map.Entry<String, ChannelLoad> entry : loads.entrySet()) {
+            final String channel = entry.getKey();
+            ChannelLoad load = entry.getValue();
+            load.update(time);
+            Channel chan = channels.get(channel);
+            if (chan == null) {
+                continue;
+            }
+            final int skipped = load.takeSkipped();
+            if (skipped > 0) {
+                addChannelLine(channel, "[Load] "+skipped+" messages not shown");
+            }
+            int mode = load.getMode();
+            int rate = load.getRate();
+            int changedMode = load.takeModeChange();
+            if (changedMode != -1) {
+                addChannelLine(channel, "[Load] "+rate+" messages per second, "
+                        + (changedMode == ChannelLoad.NORMAL
+                                ? "showing everything again"
+                                : ChannelLoad.getModeText(changedMode)
+                                + " (highlights and chat log not affected)"));
+            }
+            if (mode == ChannelLoad.NORMAL) {
+                if (changedMode != -1) {
+                    channels.setChannelLoad(chan, null, null);
+                }
+            } else {
+                channels.setChannelLoad(chan, rate+"/s", rate
+                        +" messages per second, "+ChannelLoad.getModeText(mode));
+            }
+        }
+    }
+    
+    /**
+     * Prints an info line in the channel after the messages that are still
+     * being prepared.
+     * 
+     * @param channel
+     * @param line 
+     */
+    private void addChannelLine(final String channel, final String line) {
+        addInChannelOrder(channel, IngestQueue.IMPORTANT, new Runnable() {
+            @Override
+            public void run() {
+                Channel chan = channels.get(channel);
+                if (chan != null) {
+                    chan.printLine(line);
                 }
             }
         });
     }
     
+    /**
+     * Adds an update to the ingest queue only after the messages of the
+     * channel that are still being prepared, so the order is kept.
+     * 
+     * @param channel
+     * @param type
+     * @param task 
+     */
+    private void addInChannelOrder(String channel, final int type,
+            final Runnable task) {
+        pipeline.execute(channel, new Runnable() {
+            @Override
+            public void run() {
+                ingest.add(type, task);
+            }
+        });
+    }
+    
+    /**
+     * Counts a message that wasn't shown because the ingest queue is
+     * overloaded or full.
+     * 
+     * @param channel 
+     */
+    private void collapseMessage(String channel) {
+        synchronized(collapsedMessages) {
+            Integer count = collapsedMessages.get(channel);
+            collapsedMessages.put(channel, count == null ? 1 : count + 1);
+        }
+    }
+    
+    /**
+     * Informs the user when chat is falling behind, and how many messages
+     * were not shown once it caught up again.
+     */
+    private class MyOverloadListener implements IngestQueue.OverloadListener {
+
+        @Override
+        public void overloadChanged(boolean overloaded) {
+            if (overloaded) {
+                Channel panel = channels.getActiveChannel();
+                if (panel != null) {
+                    panel.printLine("[Load] Chat is falling behind, hiding "
+                            + "joins/parts and non-highlighted messages ("
+                            + ingest.getStats()+")");
+                }
+            } else {
+                Map<String, Integer> collapsed;
+                synchronized(collapsedMessages) {
+                    collapsed = new HashMap<>(collapsedMessages);
+                    collapsedMessages.clear();
+                }
+                for (Map.Entry<String, Integer> entry : collapsed.entrySet()) {
+                    Channel panel = channels.get(entry.getKey());
+                    if (panel != null) {
+                        panel.printLine("[Load] "+entry.getValue()
+                                +" messages not shown because chat was falling behind");
+                    }
+                }
+            }
+        }
+    }
+    
     public void userBanned(final String channel, final User user) {
-        SwingUtilities.invokeLater(new Runnable() {
+        addInChannelOrder(channel, IngestQueue.IMPORTANT, new Runnable() {
 
             @Override
             public void run() {
@@ -1366,7 +1618,7 @@ public class MainGui extends JFrame implements Runnable {
     }
 
     public void printLine(final String line) {
-        SwingUtilities.invokeLater(new Runnable() {
+        ingest.add(IngestQueue.IMPORTANT, new Runnable() {
             @Override
             public void run() {
                 Channel panel = channels.getActiveChannel();
@@ -1379,7 +1631,7 @@ public class MainGui extends JFrame implements Runnable {
     }
     
     public void printSystem(final String line) {
-        SwingUtilities.invokeLater(new Runnable() {
+        ingest.add(IngestQueue.IMPORTANT, new Runnable() {
             @Override
             public void run() {
                 Channel panel = channels.getActiveChannel();
@@ -1392,7 +1644,7 @@ public class MainGui extends JFrame implements Runnable {
     }
 
     public void printLine(final String channel, final String line) {
-        SwingUtilities.invokeLater(new Runnable() {
+        addInChannelOrder(channel, IngestQueue.IMPORTANT, new Runnable() {
             @Override
             public void run() {
                 if (channel == null) {
@@ -1406,7 +1658,7 @@ public class MainGui extends JFrame implements Runnable {
     }
     
     public void printLineAll(final String line) {
-        SwingUtilities.invokeLater(new Runnable() {
+        ingest.add(IngestQueue.IMPORTANT, new Runnable() {
             @Override
             public void run() {
                 //client.chatLog.info(null, line);
@@ -1436,7 +1688,11 @@ public class MainGui extends JFrame implements Runnable {
      * @param user The User object of who was the target of this event (mod/..).
      */
     public void printCompact(final String channel, final String type, final User user) {
-        SwingUtilities.invokeLater(new Runnable() {
+        int ingestType = IngestQueue.IMPORTANT;
+        if (type.equals("JOIN") || type.equals("PART")) {
+            ingestType = IngestQueue.MEMBERSHIP;
+        }
+        addInChannelOrder(channel, ingestType, new Runnable() {
             @Override
             public void run() {
                 channels.getChannel(channel).printCompact(type, user);
@@ -1454,6 +1710,18 @@ public class MainGui extends JFrame implements Runnable {
         return channels.getActiveChannel().search(searchText);
     }
     
+    /**
+     * Perform search in the currently selected channel, in the given
+     * direction. Should only be called from the EDT.
+     * 
+     * @param searchText
+     * @param older Whether to search older lines
+     * @return 
+     */
+    public boolean search(final String searchText, boolean older) {
+        return channels.getActiveChannel().search(searchText, older);
+    }
+    
     public void resetSearch() {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
@@ -1478,6 +1746,20 @@ public class MainGui extends JFrame implements Runnable {
         });
     }
     
+    /**
+     * Shows the current latency stats in the debug window.
+     * 
+     * @param stats 
+     */
+    public void setLatencyStats(final String stats) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                debugWindow.setLatencyStats(stats);
+            }
+        });
+    }
+    
     /**
      * Outputs a line to the debug window
      * 
@@ -1523,16 +1805,7 @@ public class MainGui extends JFrame implements Runnable {
      * @param user 
      */
     public void addUser(final String channel, final User user) {
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                Channel c = channels.getChannel(channel);
-                c.addUser(user);
-                if (channels.getActiveChannel() == c) {
-                    state.update();
-                }
-            }
-        });
+        changeUserlist(channel, user, true);
     }
     
     /**
@@ -1542,11 +1815,54 @@ public class MainGui extends JFrame implements Runnable {
      * @param user 
      */
     public void removeUser(final String channel, final User user) {
-        SwingUtilities.invokeLater(new Runnable() {
+        changeUserlist(channel, user, false);
+    }
+    
+    /**
+     * Remembers that the user should be added to or removed from the
+     * userlist. The changes of a channel are performed together, and since
+     * only the last change of each user is kept, they can't be skipped when
+     * the ingest queue is overloaded.
+     * 
+     * @param channel
+     * @param user
+     * @param add true if the user should be added, false if removed
+     */
+    private void changeUserlist(final String channel, User user, boolean add) {
+        final Map<User, Boolean> changes;
+        synchronized(userlistChanges) {
+            Map<User, Boolean> pending = userlistChanges.get(channel);
+            if (pending != null) {
+                // Already scheduled
+                pending.put(user, add);
+                return;
+            }
+            changes = new LinkedHashMap<>();
+            changes.put(user, add);
+            userlistChanges.put(channel, changes);
+        }
+        ingest.add(IngestQueue.IMPORTANT, new Runnable() {
             @Override
             public void run() {
+                Map<User, Boolean> performed;
+                synchronized(userlistChanges) {
+                    if (userlistChanges.get(channel) == changes) {
+                        userlistChanges.remove(channel);
+                    }
+                    performed = changes.isEmpty() ? null : new LinkedHashMap<>(changes);
+                    changes.clear();
+                }
+                if (performed == null) {
+                    return;
+                }
                 Channel c = channels.getChannel(channel);
-                c.removeUser(user);
+                for (Map.Entry<User, Boolean> entry : performed.entrySet()) {
+                    if (entry.getValue()) {
+                        c.addUser(entry.getKey());
+                    } else {
+                        c.removeUser(entry.getKey());
+                    }
+                }
                 if (channels.getActiveChannel() == c) {
                     state.update();
                 }
@@ -1554,6 +1870,27 @@ public class MainGui extends JFrame implements Runnable {
         });
     }
     
+    /**
+     * Discards the userlist changes not performed yet, because the userlist
+     * is about to be cleared.
+     * 
+     * @param channel The channel, or {@code null} for all channels
+     */
+    private void discardUserlistChanges(String channel) {
+        synchronized(userlistChanges) {
+            for (Map.Entry<String, Map<User, Boolean>> entry : userlistChanges.entrySet()) {
+                if (channel == null || channel.equals(entry.getKey())) {
+                    entry.getValue().clear();
+                }
+            }
+            if (channel == null) {
+                userlistChanges.clear();
+            } else {
+                userlistChanges.remove(channel);
+            }
+        }
+    }
+    
     /**
      * Updates a user on the given channel.
      * 
@@ -1561,7 +1898,7 @@ public class MainGui extends JFrame implements Runnable {
      * @param user 
      */
     public void updateUser(final String channel, final User user) {
-        SwingUtilities.invokeLater(new Runnable() {
+        ingest.add(IngestQueue.IMPORTANT, new Runnable() {
             @Override
             public void run() {
                 channels.getChannel(channel).updateUser(user);
@@ -1570,11 +1907,30 @@ public class MainGui extends JFrame implements Runnable {
         });
     }
     
+    /**
+     * Clears the userlist of the given channel.
+     * 
+     * @param channel The name of the channel
+     */
+    public void clearUsers(final String channel) {
+        discardUserlistChanges(channel);
+        ingest.add(IngestQueue.IMPORTANT, new Runnable() {
+            @Override
+            public void run() {
+                Channel panel = channels.get(channel);
+                if (panel != null) {
+                    panel.clearUsers();
+                }
+            }
+        });
+    }
+    
     /**
      * Clears the userlist on all channels
      */
     public void clearUsers() {
-        SwingUtilities.invokeLater(new Runnable() {
+        discardUserlistChanges(null);
+        ingest.add(IngestQueue.IMPORTANT, new Runnable() {
             @Override
             public void run() {
                 Enumeration e = channels.elements();
@@ -2213,6 +2569,7 @@ public class MainGui extends JFrame implements Runnable {
                     if ((Boolean) value) {
                         client.clearUserList();
                     }
+                    client.setMembershipEvents(!(Boolean) value);
                 } else if (setting.equals("highlightUsername")) {
                     updateHighlightSetUsernameHighlighted((Boolean) value);
                 } else if (setting.equals("highlightNextMessages")) {
@@ -2259,6 +2616,15 @@ public class MainGui extends JFrame implements Runnable {
             if (setting.equals("spamProtection")) {
                 client.setLinesPerSeconds((String)value);
             }
+            if (setting.equals("joinLimit")) {
+                client.setJoinsPerSeconds((String)value);
+            }
+            if (setting.equals("channelsPerConnection")) {
+                client.setChannelsPerConnection(((Long)value).intValue());
+            }
+            if (setting.equals("pingTimeout")) {
+                client.setPingTimeout(((Long)value).intValue());
+            }
             if (setting.equals("urlPrompt")) {
                 UrlOpener.setPrompt((Boolean)value);
             }
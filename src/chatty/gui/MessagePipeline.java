@@ -0,0 +1,160 @@
+
+package chatty.gui;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on a pool of worker threads, where tasks for the same channel
+ * are run one after another in the order they were added, while tasks for
+ * different channels can run at the same time.
+ *
+ * This is used to prepare messages (highlighting, finding links and
+ * emoticons, ..) outside of the EDT, so a busy channel doesn't delay others.
+ *
+ * @author tduva
+ */
+public class MessagePipeline {
+
+    private static final Logger LOGGER = Logger.getLogger(MessagePipeline.class.getName());
+
+    /**
+     * How many tasks of a channel are run in a row, before other channels
+     * get a turn.
+     */
+    private static final int BATCH = 50;
+
+    private final ExecutorService pool;
+    private final Map<String, SerialExecutor> executors = new HashMap<>();
+
+    public MessagePipeline() {
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MessagePipeline-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs the task after all tasks previously added for the same channel.
+     *
+     * @param channel The channel, may be {@code null}
+     * @param task The task to run
+     */
+    public void execute(String channel, Runnable task) {
+        synchronized(executors) {
+            SerialExecutor executor = executors.get(channel);
+            if (executor == null) {
+                executor = new SerialExecutor(channel);
+                executors.put(channel, executor);
+            }
+            // In lock, so the executor isn't removed in the meantime
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Removes the executor of a channel that has been closed, once all tasks
+     * that are still queued for the channel have been run. Until then the
+     * same executor is used if the channel is opened again, so tasks are
+     * still run in order.
+     *
+     * @param channel
+     */
+    public void removeChannel(String channel) {
+        synchronized(executors) {
+            SerialExecutor executor = executors.get(channel);
+            if (executor != null) {
+                executor.close();
+                removeIfDone(executor);
+            }
+        }
+    }
+
+    /**
+     * Removes the executor if it has been closed and has no tasks left.
+     *
+     * @param executor
+     */
+    private void removeIfDone(SerialExecutor executor) {
+        synchronized(executors) {
+            if (executors.get(executor.channel) == executor && executor.isDone()) {
+                executors.remove(executor.channel);
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks given to it on the pool, but only one at a time.
+     */
+    private class SerialExecutor {
+
+        private final String channel;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+        private boolean closed;
+
+        private final Runnable runNext = new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i=0;i<BATCH;i++) {
+                    Runnable task = poll();
+                    if (task == null) {
+                        removeIfDone(SerialExecutor.this);
+                        return;
+                    }
+                    try {
+                        task.run();
+                    } catch (Exception ex) {
+                        LOGGER.warning("Error preparing message: "+ex);
+                    }
+                }
+                // Continue later, so other channels can run as well
+                pool.execute(runNext);
+            }
+        };
+
+        SerialExecutor(String channel) {
+            this.channel = channel;
+        }
+
+        synchronized void execute(Runnable task) {
+            tasks.add(task);
+            if (!running) {
+                running = true;
+                pool.execute(runNext);
+            }
+        }
+
+        private synchronized Runnable poll() {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                running = false;
+            }
+            return task;
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        synchronized boolean isDone() {
+            return closed && !running && tasks.isEmpty();
+        }
+    }
+
+}
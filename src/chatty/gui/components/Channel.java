@@ -192,6 +192,10 @@ public class Channel extends JPanel implements CompletionServer {
         return text.search(searchText);
     }
     
+    public boolean search(String searchText, boolean older) {
+        return text.search(searchText, older);
+    }
+    
     public void resetSearch() {
         text.resetSearch();
     }
@@ -213,6 +217,11 @@ public class Channel extends JPanel implements CompletionServer {
         text.printMessage(user, message, action, highlighted);
     }
     
+    public void printMessage(User user, String message, boolean action,
+            boolean highlighted, Specials specials) {
+        text.printMessage(user, message, action, highlighted, specials);
+    }
+    
     
     // Style
     
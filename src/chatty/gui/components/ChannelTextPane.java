@@ -20,22 +20,22 @@ import chatty.util.api.ChatIcons;
 import chatty.util.api.Emoticon;
 import chatty.util.api.Emoticon.EmoticonUser;
 import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.AdjustmentEvent;
 import java.awt.event.AdjustmentListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionListener;
 import java.awt.image.BufferedImage;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.Map.Entry;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.DocumentEvent;
 import javax.swing.text.*;
 import javax.swing.text.html.HTML;
@@ -67,17 +67,6 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     private static final int BUFFER_SIZE_MIN = 10;
     private static final int BUFFER_SIZE_MAX = 10000;
     
-    /**
-     * The regex String for finding URLs in messages.
-     */
-    private static final String urlRegex =
-        "(?i)\\b(?:(?:https?)://|www\\.)[-A-Z0-9+&@#/%=~_|$?!:,.]*[A-Z0-9+&@#/%=~_|$]";
-    /**
-     * The Matcher to use for finding URLs in messages.
-     */
-    private static final Matcher urlMatcher =
-            Pattern.compile(urlRegex).matcher("");
-    
     public MainGui main;
 
     protected LinkController linkController = new LinkController();
@@ -115,6 +104,55 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     protected final Styles styles = new Styles();
     private final ScrollManager scrollManager = new ScrollManager();
     
+    /**
+     * Positions within the lines of each user, in the order they were
+     * printed, so they can be found without searching the whole document.
+     */
+    private final Map<User, ArrayDeque<Position>> linesByUser = new HashMap<>();
+    
+    /**
+     * The same positions of all users in the order they were printed, so
+     * they can be removed when the first lines are removed.
+     */
+    private final ArrayDeque<UserLine> userLines = new ArrayDeque<>();
+    
+    /**
+     * The text printed since the document was last changed, which is added
+     * to the document all at once after the current event (so usually all
+     * messages received within one frame are added together).
+     */
+    private final PrintBatch printBatch = new PrintBatch();
+    private boolean flushScheduled;
+    
+    /**
+     * Positions of emoticons whose icon is still being loaded, so only those
+     * have to be refreshed once it is loaded.
+     */
+    private final Map<Emoticon, ArrayList<Position>> loadingEmoticons = new HashMap<>();
+    
+    /**
+     * Emoticons whose icon has been loaded, but which haven't been refreshed
+     * yet.
+     */
+    private final Set<Emoticon> loadedEmoticons = new HashSet<>();
+    
+    /**
+     * How long to wait for more icons to finish loading, before refreshing
+     * them together.
+     */
+    private static final int ICON_UPDATE_DELAY = 100;
+    
+    private final javax.swing.Timer iconUpdateTimer;
+    
+    private final Runnable flush = new Runnable() {
+
+        @Override
+        public void run() {
+            flushScheduled = false;
+            flush();
+        }
+    };
+    
     public ChannelTextPane(MainGui main, StyleServer styleServer) {
         ChannelTextPane.styleServer = styleServer;
         this.main = main;
@@ -130,6 +168,14 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         DefaultCaret caret = (DefaultCaret)getCaret();
         caret.setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
         styles.setStyles();
+        iconUpdateTimer = new javax.swing.Timer(ICON_UPDATE_DELAY, new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                updateLoadedEmoticons();
+            }
+        });
+        iconUpdateTimer.setRepeats(false);
     }
     
     public void setContextMenuListener(ContextMenuListener listener) {
@@ -143,11 +189,88 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     /**
      * Can be called when an icon finished loading, so it is displayed correctly.
      * 
-     * This seems pretty ineffecient, because it refreshes the whole document.
+     * Only the places where the emoticon is used are refreshed, shortly after,
+     * so that several icons finishing loading at about the same time are
+     * updated together.
+     * 
+     * @param emoticon
      */
     @Override
-    public void iconLoaded() {
-        ((MyDocument)doc).refresh();
+    public void iconLoaded(Emoticon emoticon) {
+        if (loadingEmoticons.containsKey(emoticon)) {
+            loadedEmoticons.add(emoticon);
+            if (!iconUpdateTimer.isRunning()) {
+                iconUpdateTimer.start();
+            }
+        }
+    }
+    
+    /**
+     * Remembers the position of the emoticon printed with the given style,
+     * if its icon is still being loaded.
+     * 
+     * @param style
+     * @param offset 
+     */
+    private void addLoadingEmoticon(AttributeSet style, int offset) {
+        Object emoticon = style.getAttribute(CHATTY_EMOTICON);
+        if (emoticon instanceof Emoticon && ((Emoticon)emoticon).isLoading()) {
+            try {
+                ArrayList<Position> positions = loadingEmoticons.get((Emoticon)emoticon);
+                if (positions == null) {
+                    positions = new ArrayList<>();
+                    loadingEmoticons.put((Emoticon)emoticon, positions);
+                }
+                positions.add(doc.createPosition(offset));
+            } catch (BadLocationException ex) {
+                LOGGER.warning("Bad location: "+ex);
+            }
+        }
+    }
+    
+    /**
+     * Refreshes the elements of the emoticons that finished loading, so they
+     * are displayed with the correct icon (and size).
+     */
+    private void updateLoadedEmoticons() {
+        MyDocument myDoc = (MyDocument)doc;
+        for (Emoticon emoticon : loadedEmoticons) {
+            ArrayList<Position> positions = loadingEmoticons.remove(emoticon);
+            if (positions == null) {
+                continue;
+            }
+            for (Position pos : positions) {
+                Element element = doc.getCharacterElement(pos.getOffset());
+                // The text may have been removed in the meantime
+                if (element.getAttributes().getAttribute(CHATTY_EMOTICON) == emoticon) {
+                    int start = element.getStartOffset();
+                    myDoc.refresh(start, element.getEndOffset() - start);
+                }
+            }
+        }
+        loadedEmoticons.clear();
+    }
+    
+    /**
+     * Forgets the positions of loading emoticons before the given offset
+     * (which are about to be removed).
+     * 
+     * @param endOffset 
+     */
+    private void removeLoadingEmoticons(int endOffset) {
+        Iterator<ArrayList<Position>> it = loadingEmoticons.values().iterator();
+        while (it.hasNext()) {
+            ArrayList<Position> positions = it.next();
+            Iterator<Position> posIt = positions.iterator();
+            while (posIt.hasNext()) {
+                if (posIt.next().getOffset() < endOffset) {
+                    posIt.remove();
+                }
+            }
+            if (positions.isEmpty()) {
+                it.remove();
+            }
+        }
     }
  
     /**
@@ -158,6 +281,22 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
      */
     public void printMessage(final User user, final String text, boolean action,
             boolean highlighted) {
+        printMessage(user, text, action, highlighted, null);
+    }
+    
+    /**
+     * Prints a message from a user to the main text area, with the links and
+     * emoticons already found (e.g. outside of the EDT).
+     * 
+     * @param user
+     * @param text
+     * @param action
+     * @param highlighted
+     * @param specials The links and emoticons in the text, or {@code null} to
+     * find them now
+     */
+    public void printMessage(final User user, final String text, boolean action,
+            boolean highlighted, Specials specials) {
         
         closeCompactMode();
 
@@ -170,7 +309,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         }
         print(getTimePrefix(), style);
         printUser(user,action);
-        printSpecials(text, user, style);
+        printSpecials(text, user, style, specials);
         printNewline();
     }
     
@@ -189,6 +328,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
             print(" has been banned from talking", styles.info());
             printNewline();
         }
+        flush();
         ArrayList<Integer> lines = getLinesFromUser(user);
         Iterator<Integer> it = lines.iterator();
         /**
@@ -207,7 +347,8 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     }
     
     /**
-     * Searches the Document for all lines by the given user.
+     * Gets all lines by the given user, based on the positions remembered
+     * when printing the lines.
      * 
      * @param nick
      * @return 
@@ -215,15 +356,123 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     private ArrayList<Integer> getLinesFromUser(User user) {
         Element root = doc.getDefaultRootElement();
         ArrayList<Integer> result = new ArrayList<>();
-        for (int i=0;i<root.getElementCount();i++) {
-            Element line = root.getElement(i);
-            if (isLineFromUser(line, user)) {
+        ArrayDeque<Position> positions = linesByUser.get(user);
+        if (positions == null) {
+            return result;
+        }
+        int previous = -1;
+        for (Position pos : positions) {
+            int i = root.getElementIndex(pos.getOffset());
+            // Check anyway, in case the document was changed otherwise
+            if (i != previous && isLineFromUser(root.getElement(i), user)) {
                 result.add(i);
+                previous = i;
             }
         }
         return result;
     }
     
+    /**
+     * Remembers that the line at the given offset is from the given user.
+     * 
+     * @param user 
+     * @param offset
+     */
+    private void addUserLine(User user, int offset) {
+        try {
+            Position pos = doc.createPosition(offset);
+            ArrayDeque<Position> positions = linesByUser.get(user);
+            if (positions == null) {
+                positions = new ArrayDeque<>();
+                linesByUser.put(user, positions);
+                // Keep the User while it has lines in the chat
+                user.addReference();
+            }
+            positions.add(pos);
+            userLines.add(new UserLine(user, pos));
+        } catch (BadLocationException ex) {
+            LOGGER.warning("Bad location: "+ex);
+        }
+    }
+    
+    /**
+     * Forgets all lines that start before the given offset (which are about
+     * to be removed).
+     * 
+     * @param endOffset 
+     */
+    private void removeUserLines(int endOffset) {
+        while (!userLines.isEmpty()
+                && userLines.peekFirst().pos.getOffset() < endOffset) {
+            UserLine line = userLines.pollFirst();
+            ArrayDeque<Position> positions = linesByUser.get(line.user);
+            if (positions != null) {
+                positions.remove(line.pos);
+                if (positions.isEmpty()) {
+                    linesByUser.remove(line.user);
+                    line.user.removeReference();
+                }
+            }
+        }
+    }
+    
+    private static class UserLine {
+        
+        private final User user;
+        private final Position pos;
+        
+        UserLine(User user, Position pos) {
+            this.user = user;
+            this.pos = pos;
+        }
+    }
+    
+    /**
+     * The cached nick styles of a user, which are valid as long as the color
+     * of the user stays the same.
+     */
+    private static class NickStyles {
+        
+        private final Color color;
+        private final boolean changedColor;
+        private AttributeSet message;
+        private Map<AttributeSet, AttributeSet> others;
+        
+        NickStyles(Color color, boolean changedColor) {
+            this.color = color;
+            this.changedColor = changedColor;
+        }
+        
+        boolean isValid(Color color, boolean changedColor) {
+            return this.changedColor == changedColor
+                    && (this.color == null ? color == null : this.color.equals(color));
+        }
+        
+        /**
+         * Gets the nick style based on the given style.
+         * 
+         * @param base The style, or {@code null} for the chat message style
+         * @return The style, or {@code null} if none is cached yet
+         */
+        AttributeSet get(AttributeSet base) {
+            if (base == null) {
+                return message;
+            }
+            return others != null ? others.get(base) : null;
+        }
+        
+        void put(AttributeSet base, AttributeSet style) {
+            if (base == null) {
+                message = style;
+            } else {
+                if (others == null) {
+                    others = new IdentityHashMap<>();
+                }
+                others.put(base, style);
+            }
+        }
+    }
+    
     /**
      * Checks if the given element is a line that is associated with the given
      * User.
@@ -306,6 +555,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
                 doc.remove(removedStart, removedLength);
                 length = length - removedLength - 1;
                 doc.insertString(removedStart, "..", styles.info());
+                searchIndex.update(line, getLineText(line));
             } catch (BadLocationException ex) {
                 LOGGER.warning("Bad location");
             }
@@ -340,6 +590,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
                 doc.remove(startOffset, endOffset - startOffset - 1);
                 doc.insertString(startOffset, "<message deleted>", styles.info());
                 setLineDeleted(startOffset);
+                searchIndex.update(line, getLineText(line));
             } catch (BadLocationException ex) {
                 LOGGER.warning("Bad location: "+startOffset+"-"+endOffset+" "+ex.getLocalizedMessage());
             }
@@ -386,97 +637,209 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         return new int[0];
     }
     
-    private Element lastSearchPos = null;
+    /**
+     * The number of the line of the last search result (as given by the
+     * search index), or -1 if there is none.
+     */
+    private long lastSearchLine = -1;
+    
+    /**
+     * The start and end of the currently highlighted search result.
+     */
+    private Position searchResultStart;
+    private Position searchResultEnd;
     
-    private boolean doesLineExist(Object line) {
-        int count = doc.getDefaultRootElement().getElementCount();
-        for (int i=0;i<count;i++) {
-            if (doc.getDefaultRootElement().getElement(i) == line) {
-                return true;
-            }
-        }
-        return false;
-    }
+    private final SearchIndex searchIndex = new SearchIndex();
     
     /**
      * Perform search in the chat buffer. Starts searching for the given text
      * backwards from the last found position.
      * 
      * @param searchText 
+     * @return true if a result was found
      */
     public boolean search(String searchText) {
+        return search(searchText, true);
+    }
+    
+    /**
+     * Perform search in the chat buffer. Starts searching for the given text
+     * from the last found position, either backwards (older lines) or
+     * forwards (newer lines).
+     * 
+     * @param searchText
+     * @param older Whether to search older lines
+     * @return true if a result was found
+     */
+    public boolean search(String searchText, boolean older) {
         if (searchText == null || searchText.isEmpty()) {
             return false;
         }
+        flush();
         clearSearchResult();
-        int count = doc.getDefaultRootElement().getElementCount();
-        if (lastSearchPos != null && !doesLineExist(lastSearchPos)) {
-            //System.out.println(lastSearchPos+"doesnt exist");
-            lastSearchPos = null;
-        }
-        // Determine if search should start immediately.
-        boolean startSearch = lastSearchPos == null;
+        updateSearchIndex();
+        Element root = doc.getDefaultRootElement();
+        int count = root.getElementCount();
         searchText = searchText.toLowerCase();
-        // Loop through all lines
-        for (int i=count-1;i>=0;i--) {
-            //System.out.println(i+"/"+count);
-            Element element = doc.getDefaultRootElement().getElement(i);
-            if (element == lastSearchPos) {
-                // If this lines contained the last result, start searching
-                // on next line
-                startSearch = true;
-                if (i == 0) {
-                    lastSearchPos = null;
-                }
-                continue;
+        
+        int[] candidates = searchIndex.getCandidates(searchText);
+        int lastIndex = searchIndex.getIndex(lastSearchLine);
+        if (lastSearchLine != -1 && lastIndex == -1
+                && lastSearchLine != searchIndex.getLineNumber(count - 1)) {
+            // Line doesn't exist anymore, so start from the bottom
+            lastSearchLine = -1;
+        }
+        if (lastSearchLine == -1) {
+            lastIndex = older ? count : -1;
+        } else if (lastIndex == -1) {
+            // Last line, which isn't in the index yet
+            lastIndex = count - 1;
+        }
+        
+        // Go through the possible lines in the given direction
+        int found = -1;
+        if (older) {
+            if (lastIndex > count - 1 && isSearchResult(count - 1, searchText)) {
+                found = count - 1;
             }
-            if (!startSearch) {
-                continue;
+            for (int i = findStart(candidates, lastIndex, count, true);
+                    found == -1 && i >= 0; i--) {
+                if (isSearchResult(getLine(candidates, i), searchText)) {
+                    found = getLine(candidates, i);
+                }
             }
-            int startOffset = element.getStartOffset();
-            int endOffset = element.getEndOffset() - 1;
-            int length = endOffset - startOffset;
-            try {
-                String text = doc.getText(startOffset, length);
-                if (text.toLowerCase().contains(searchText)) {
-                    //this.setCaretPosition(startOffset);
-                    //this.moveCaretPosition(endOffset);
-                    doc.setCharacterAttributes(startOffset, length, styles.searchResult(), false);
-                    scrollManager.scrollToOffset(startOffset);
-                    //System.out.println(text);
-//                    if (i == 0) {
-//                        lastSearchPos = null;
-//                    } else {
-                        lastSearchPos = element;
-//                    }
-                    break;
+        } else {
+            int size = candidates == null ? count - 1 : candidates.length;
+            for (int i = findStart(candidates, lastIndex, count, false);
+                    found == -1 && i < size; i++) {
+                if (isSearchResult(getLine(candidates, i), searchText)) {
+                    found = getLine(candidates, i);
                 }
-            } catch (BadLocationException ex) {
-                LOGGER.warning("Bad location");
             }
-            lastSearchPos = null;
+            if (found == -1 && lastIndex < count - 1
+                    && isSearchResult(count - 1, searchText)) {
+                found = count - 1;
+            }
         }
-        if (lastSearchPos == null) {
+        
+        if (found == -1) {
+            lastSearchLine = -1;
             scrollManager.scrollDown();
             return false;
         }
+        Element element = root.getElement(found);
+        int startOffset = element.getStartOffset();
+        int length = element.getEndOffset() - 1 - startOffset;
+        doc.setCharacterAttributes(startOffset, length, styles.searchResult(), false);
+        try {
+            searchResultStart = doc.createPosition(startOffset);
+            searchResultEnd = doc.createPosition(startOffset + length);
+        } catch (BadLocationException ex) {
+            LOGGER.warning("Bad location");
+        }
+        scrollManager.scrollToOffset(startOffset);
+        lastSearchLine = searchIndex.getLineNumber(found);
         return true;
     }
     
+    /**
+     * Gets the position in the candidates (or lines, if there are no
+     * candidates) to start searching from, so that the line of the last
+     * result is excluded.
+     * 
+     * @param candidates The candidates, or {@code null} to search all lines
+     * @param lastIndex The index of the line of the last result
+     * @param count The number of lines
+     * @param older The search direction
+     * @return 
+     */
+    private static int findStart(int[] candidates, int lastIndex, int count,
+            boolean older) {
+        if (candidates == null) {
+            // Only the lines in the index (without the last)
+            return older ? Math.min(lastIndex, count - 1) - 1 : lastIndex + 1;
+        }
+        int pos = Arrays.binarySearch(candidates, lastIndex);
+        if (pos >= 0) {
+            return older ? pos - 1 : pos + 1;
+        }
+        int insertion = -pos - 1;
+        return older ? insertion - 1 : insertion;
+    }
+    
+    private static int getLine(int[] candidates, int i) {
+        return candidates == null ? i : candidates[i];
+    }
+    
+    /**
+     * Checks if the line with the given index contains the search text.
+     * 
+     * @param index
+     * @param searchText The text to search for, lowercase
+     * @return 
+     */
+    private boolean isSearchResult(int index, String searchText) {
+        return getLineText(index).contains(searchText);
+    }
+    
+    /**
+     * Gets the text of the line with the given index, lowercase.
+     * 
+     * @param index
+     * @return The text, or an empty String if the line doesn't exist
+     */
+    private String getLineText(int index) {
+        Element element = doc.getDefaultRootElement().getElement(index);
+        if (element == null) {
+            return "";
+        }
+        int startOffset = element.getStartOffset();
+        int length = element.getEndOffset() - 1 - startOffset;
+        try {
+            return doc.getText(startOffset, length).toLowerCase();
+        } catch (BadLocationException ex) {
+            LOGGER.warning("Bad location");
+            return "";
+        }
+    }
+    
+    /**
+     * Adds all finished lines (all lines except the last one) to the search
+     * index. If the index doesn't match the lines (e.g. because the document
+     * was cleared), it is built again.
+     */
+    private void updateSearchIndex() {
+        int finished = doc.getDefaultRootElement().getElementCount() - 1;
+        if (searchIndex.getCount() > finished) {
+            searchIndex.clear();
+        }
+        while (searchIndex.getCount() < finished) {
+            searchIndex.add(getLineText(searchIndex.getCount()));
+        }
+    }
+    
     /**
      * Remove any highlighted search results and start the search from the
      * beginning next time.
      */
     public void resetSearch() {
         clearSearchResult();
-        lastSearchPos = null;
+        lastSearchLine = -1;
     }
     
     /**
      * Removes any prior style changes used to highlight a search result.
      */
     private void clearSearchResult() {
-        doc.setCharacterAttributes(0, doc.getLength(), styles.clearSearchResult(), false);
+        if (searchResultStart != null) {
+            int start = searchResultStart.getOffset();
+            int length = searchResultEnd.getOffset() - start;
+            if (length > 0) {
+                doc.setCharacterAttributes(start, length, styles.clearSearchResult(), false);
+            }
+            searchResultStart = null;
+            searchResultEnd = null;
+        }
     }
 
     /**
@@ -497,7 +860,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         else {
             print(userName+": ",styles.nick(user, null));
         }
-        
+        printBatch.addUser(user);
     }
     
     /**
@@ -529,17 +892,19 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     
     /**
      * Removes some chat lines from the top, depending on the current
-     * scroll position.
+     * scroll position. Once there are too many lines, some more are removed
+     * at once, so this doesn't have to be done for every new line.
+     * 
+     * @param atEnd Whether the scroll position is at the end
      */
-    private void clearSomeChat() {
+    private void clearSomeChat(boolean atEnd) {
         int count = doc.getDefaultRootElement().getElementCount();
         int max = styles.bufferSize();
-        if (count > max || ( count > max*0.75 && scrollManager.isScrollpositionAtTheEnd() )) {
-            removeFirstLines(2);
+        int limit = atEnd ? (int)(max*0.75) : max;
+        if (count > limit) {
+            int keep = limit - Math.max(2, max / 20);
+            removeFirstLines(count - keep);
         }
-        //if (doc.getDefaultRootElement().getElementCount() > 500) {
-        //    removeFirstLine();
-        //}
     }
 
     /**
@@ -548,6 +913,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
      * @param amount 
      */
     public void removeFirstLines(int amount) {
+        flush();
         if (amount < 1) {
             amount = 1;
         }
@@ -555,6 +921,9 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         Element lastToRemove = doc.getDefaultRootElement().getElement(amount - 1);
         int startOffset = firstToRemove.getStartOffset();
         int endOffset = lastToRemove.getEndOffset();
+        removeUserLines(endOffset);
+        removeLoadingEmoticons(endOffset);
+        searchIndex.removeFirst(amount);
         try {
             doc.remove(startOffset,endOffset);
         } catch (BadLocationException ex) {
@@ -665,41 +1034,55 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     /**
      * Print special stuff in the text like links and emoticons differently.
      * 
-     * First a map of all special stuff that can be found in the text is built,
-     * in a way that stuff doesn't overlap with previously found stuff.
+     * @param text 
+     * @param user 
+     * @param style 
+     */
+    protected void printSpecials(String text, User user, MutableAttributeSet style) {
+        printSpecials(text, user, style, null);
+    }
+    
+    /**
+     * Print special stuff in the text like links and emoticons differently.
+     * 
+     * First all special stuff that can be found in the text is found (unless
+     * it was already found before), in a way that stuff doesn't overlap with
+     * previously found stuff.
      * 
-     * Then all the special stuff in this map is printed accordingly, while
-     * printing the stuff inbetween with regular style.
+     * Then all the special stuff is printed accordingly, while printing the
+     * stuff inbetween with regular style.
      * 
      * @param text 
      * @param user 
      * @param style 
+     * @param specials The already found special stuff, or {@code null}
      */
-    protected void printSpecials(String text, User user, MutableAttributeSet style) {
-        // Where stuff was found
-        TreeMap<Integer,Integer> ranges = new TreeMap<>();
-        // The style of the stuff (basicially metadata)
-        HashMap<Integer,MutableAttributeSet> rangesStyle = new HashMap<>();
-        
-        findLinks(text, ranges, rangesStyle);
-        
-        if (styles.showEmoticons()) {
-            findEmoticons(text, user, ranges, rangesStyle);
+    protected void printSpecials(String text, User user,
+            MutableAttributeSet style, Specials specials) {
+        boolean showEmoticons = styles.showEmoticons();
+        if (specials == null) {
+            specials = Specials.find(text, user,
+                    showEmoticons ? main.emoticons : null);
         }
         
         // Actually print everything
         int lastPrintedPos = 0;
-        Iterator<Entry<Integer, Integer>> rangesIt = ranges.entrySet().iterator();
+        Iterator<Entry<Integer, Integer>> rangesIt = specials.getRanges().entrySet().iterator();
         while (rangesIt.hasNext()) {
             Entry<Integer, Integer> range = rangesIt.next();
             int start = range.getKey();
             int end = range.getValue();
+            AttributeSet rangeStyle = getSpecialStyle(specials, start, showEmoticons);
+            if (rangeStyle == null) {
+                // Print as regular text together with the following text
+                continue;
+            }
             if (start > lastPrintedPos) {
                 // If there is anything between the special stuff, print that
                 // first as regular text
                 print(text.substring(lastPrintedPos, start), style);
             }
-            print(text.substring(start, end + 1),rangesStyle.get(start));
+            print(text.substring(start, end + 1), rangeStyle);
             lastPrintedPos = end + 1;
         }
         // If anything is left, print that as well as regular text
@@ -709,103 +1092,29 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         
     }
     
-    private void findLinks(String text, Map<Integer, Integer> ranges,
-            Map<Integer, MutableAttributeSet> rangesStyle) {
-        // Find links
-        urlMatcher.reset(text);
-        while (urlMatcher.find()) {
-            int start = urlMatcher.start();
-            int end = urlMatcher.end() - 1;
-            if (!inRanges(start, ranges) && !inRanges(end,ranges)) {
-                String foundUrl = urlMatcher.group();
-                if (checkUrl(foundUrl)) {
-                    ranges.put(start, end);
-                    rangesStyle.put(start, styles.url(foundUrl));
-                }
-            }
-        }
-    }
-    
-    
-    private void findEmoticons(String text, User user, Map<Integer, Integer> ranges,
-            Map<Integer, MutableAttributeSet> rangesStyle) {
-        for (Integer set : user.getEmoteSet()) {
-            HashSet<Emoticon> emoticons = main.emoticons.getEmoticons(set);
-            findEmoticons(emoticons, text, ranges, rangesStyle);
-        }
-        HashSet<Emoticon> emoticons = main.emoticons.getEmoticons();
-        findEmoticons(emoticons, text, ranges, rangesStyle);
-        
-        HashSet<Emoticon> otherEmoticons = main.emoticons.getEmoticons(null);
-        findEmoticons(otherEmoticons, text, ranges, rangesStyle);
-        
-        HashSet<Emoticon> otherEmoticons2 = main.emoticons.getEmoticons(user.getStream());
-        findEmoticons(otherEmoticons2, text, ranges, rangesStyle);
-    }
-    
-    private void findEmoticons(HashSet<Emoticon> emoticons, String text,
-            Map<Integer, Integer> ranges, Map<Integer, MutableAttributeSet> rangesStyle) {
-        // Find emoticons
-        Iterator<Emoticon> it = emoticons.iterator();
-        while (it.hasNext()) {
-            // Check the text for every single emoticon
-            Emoticon emoticon = it.next();
-            Matcher m = emoticon.getMatcher(text);
-            while (m.find()) {
-                // As long as this emoticon is still found in the text, add
-                // it's position (if it doesn't overlap with something already
-                // found) and move on
-                int start = m.start();
-                int end = m.end() - 1;
-                if (!inRanges(start, ranges) && !inRanges(end, ranges)) {
-                    if (emoticon.getIcon(this) != null) {
-                        ranges.put(start, end);
-                        MutableAttributeSet attr = styles.emoticon(emoticon);
-                        // Add an extra attribute, making this Style unique
-                        // (else only one icon will be output if two of the same
-                        // follow in a row)
-                        attr.addAttribute("start", start);
-                        rangesStyle.put(start,attr);
-                    }
-                }
-            }
-        }
-    }
-    
     /**
-     * Checks if the given integer is within the range of any of the key=value
-     * pairs of the Map (inclusive).
+     * Gets the style for the special stuff found at the given index.
      * 
-     * @param i
-     * @param ranges
-     * @return 
+     * @param specials
+     * @param start
+     * @param showEmoticons
+     * @return The style, or {@code null} if it should be printed as regular
+     * text (the range stays reserved, see {@link Specials})
      */
-    private boolean inRanges(int i, Map<Integer,Integer> ranges) {
-        Iterator<Entry<Integer, Integer>> rangesIt = ranges.entrySet().iterator();
-        while (rangesIt.hasNext()) {
-            Entry<Integer, Integer> range = rangesIt.next();
-            if (i >= range.getKey() && i <= range.getValue()) {
-                return true;
+    private AttributeSet getSpecialStyle(Specials specials, int start,
+            boolean showEmoticons) {
+        String url = specials.getUrl(start);
+        if (url != null) {
+            return styles.url(url);
+        }
+        Emoticon emoticon = specials.getEmoticon(start);
+        if (emoticon != null && showEmoticons) {
+            ImageIcon icon = emoticon.getIcon(this);
+            if (icon != null) {
+                return styles.emoticon(emoticon, icon);
             }
         }
-        return false;
-    }
-
-
-    
-    /**
-     * Checks if the Url can be later used as a URI.
-     * 
-     * @param uriToCheck
-     * @return 
-     */
-    private boolean checkUrl(String uriToCheck) {
-        try {
-            new URI(uriToCheck);
-        } catch (URISyntaxException ex) {
-            return false;
-        }
-        return true;
+        return null;
     }
     
     /*
@@ -844,38 +1153,79 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     /**
      * Adds the text to the main text area. Only for use in the EDT.
      * 
+     * The text is only actually added to the document after the current
+     * event, together with anything else printed until then.
+     * 
      * @param text
      * @param printStyle 
      */
     private void printInternal(String text, AttributeSet printStyle) {
         //System.out.println("EDT:"+SwingUtilities.isEventDispatchThread());
+        if (newlineRequired) {
+            text = "\n"+text;
+            newlineRequired = false;
+        }
+        printBatch.add(text, printStyle);
+        if (!flushScheduled && !printBatch.isEmpty()) {
+            flushScheduled = true;
+            SwingUtilities.invokeLater(flush);
+        }
+    }
+    
+    /**
+     * Adds the printed text to the document, in one edit. Afterwards old
+     * lines are removed if necessary and it scrolls down once, if it should.
+     * 
+     * This is performed automatically after the event the text was printed
+     * in, but has to be called before accessing the document directly.
+     */
+    private void flush() {
+        if (printBatch.isEmpty()) {
+            return;
+        }
+        boolean atEnd = scrollManager.isScrollpositionAtTheEnd();
+        boolean scroll = (atEnd || scrollManager.scrolledUpTimeout())
+                && lastSearchLine == -1;
+        int offset = doc.getLength();
         try {
-            String newline = "";
-            if (newlineRequired) {
-                newline = "\n";
-                newlineRequired = false;
-                clearSomeChat();
-            }
-            doc.insertString(doc.getLength(), newline+text, printStyle);
-            // TODO: check how this works
-            doc.setParagraphAttributes(doc.getLength(), 1, styles.paragraph(), true);
-
-            // Scrolling if necessary
-            if ((scrollManager.isScrollpositionAtTheEnd() || scrollManager.scrolledUpTimeout())
-                    && lastSearchPos == null) {
-            //if (false) {
-                scrollManager.scrollDown();
-                SwingUtilities.invokeLater(new Runnable() {
-                    @Override
-                    public void run() {
-                        scrollManager.scrollDown();
-                    }
-                });
-
+            if (offset > 0 && doc.getText(offset - 1, 1).equals("\n")) {
+                // Not a case the specs are made for, shouldn't happen
+                for (int i=0;i<printBatch.getRunCount();i++) {
+                    doc.insertString(doc.getLength(), printBatch.getRunText(i),
+                            printBatch.getRunStyle(i));
+                }
+            } else {
+                ((MyDocument)doc).append(printBatch.createSpecs(styles.paragraph()));
+            }
+            // Paragraph attributes of the lines that text was added to (the
+            // line a newline was added to at the start isn't changed)
+            int paragraphStart = printBatch.startsWithNewline() ? offset + 1 : offset;
+            doc.setParagraphAttributes(paragraphStart,
+                    doc.getLength() - paragraphStart + 1, styles.paragraph(), true);
+            for (int i=0;i<printBatch.getUserCount();i++) {
+                addUserLine(printBatch.getUser(i), offset + printBatch.getUserIndex(i));
+            }
+            for (int i=0;i<printBatch.getRunCount();i++) {
+                addLoadingEmoticon(printBatch.getRunStyle(i), offset + printBatch.getRunStart(i));
             }
         } catch (BadLocationException e) {
             System.err.println("BadLocationException");
         }
+        printBatch.clear();
+        
+        // All lines except the last are finished now
+        updateSearchIndex();
+        clearSomeChat(atEnd);
+
+        // Scrolling if necessary, once the layout has been updated
+        if (scroll) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    scrollManager.scrollDown();
+                }
+            });
+        }
     }
     
     
@@ -908,10 +1258,12 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     }
     
     public void setChatIcons(ChatIcons icons) {
+        flush();
         styles.setIcons(icons);
     }
     
     public void refreshStyles() {
+        flush();
         styles.refresh();
     }
 
@@ -933,6 +1285,12 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         private int lastScrollPosition = 0;
         private static final int SCROLLED_UP_TIMEOUT = 30;
         
+        /**
+         * Whether delayed lines are currently being layed out, so changing the
+         * scroll position during that doesn't start it again.
+         */
+        private boolean layingOut;
+        
         public void setScrollPane(JScrollPane pane) {
             this.scrollpane = pane;
             addListeners();
@@ -950,6 +1308,44 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
                             }
                         }
                     });
+            scrollpane.getViewport().addChangeListener(new ChangeListener() {
+
+                @Override
+                public void stateChanged(ChangeEvent e) {
+                    layoutNearlyVisible();
+                }
+            });
+        }
+        
+        /**
+         * Performs the delayed layout of lines that are now visible or close
+         * to it (because of scrolling or resizing), so this is done before
+         * they are painted. If lines above the visible area changed in height
+         * the scroll position is changed accordingly, so the visible content
+         * doesn't jump.
+         */
+        private void layoutNearlyVisible() {
+            if (layingOut) {
+                return;
+            }
+            View root = getUI().getRootView(ChannelTextPane.this);
+            if (root.getViewCount() == 0
+                    || !(root.getView(0) instanceof ChatBoxView)) {
+                return;
+            }
+            layingOut = true;
+            try {
+                ChatBoxView box = (ChatBoxView)root.getView(0);
+                int changeAbove = box.layoutNearlyVisible();
+                if (changeAbove != 0) {
+                    JViewport viewport = scrollpane.getViewport();
+                    Point position = viewport.getViewPosition();
+                    position.y = Math.max(0, position.y + changeAbove);
+                    viewport.setViewPosition(position);
+                }
+            } finally {
+                layingOut = false;
+            }
         }
         
         /**
@@ -1058,6 +1454,35 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         
         private final Set<Object> defaultIconReplaced = new HashSet<>();
         
+        /**
+         * Nick styles by user, so they don't have to be created (and the
+         * color corrected) for every message. Only the most recently used
+         * are kept, since they reference the User objects.
+         */
+        private final Map<User, NickStyles> nickStyles = new LinkedHashMap<User, NickStyles>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<User, NickStyles> eldest) {
+                return size() > NICK_STYLES_MAX;
+            }
+        };
+        
+        private static final int NICK_STYLES_MAX = 2000;
+        
+        /**
+         * Colors corrected for readability on the current background, by
+         * the original color.
+         */
+        private final Map<Color, Color> correctedColors = new HashMap<>();
+        
+        private static final int CORRECTED_COLORS_MAX = 2000;
+        
+        /**
+         * Styles for emoticons, so they don't have to be created for every
+         * emoticon that is printed.
+         */
+        private final Map<Emoticon, AttributeSet> emoticonStyles = new HashMap<>();
+        
         /**
          * Set new icons, either from the Twitch API or from FFZ. Only replace
          * if FFZ is enabled and it's the FFZ, or if FFZ is disabled and it's
@@ -1155,6 +1580,10 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         public boolean setStyles() {
             LOGGER.info("setStyles");
             changedStyles.clear();
+            // Styles created from the previous styles or background
+            nickStyles.clear();
+            correctedColors.clear();
+            emoticonStyles.clear();
             boolean somethingChanged = false;
             for (String styleName : baseStyles) {
                 if (loadStyle(styleName)) {
@@ -1362,20 +1791,38 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         }
         
         /**
-         * Makes a style for the given User, containing the User-object itself
-         * and the user-color. Changes the color to hopefully improve readability.
+         * Gets the style for the nick of the given user. The styles are
+         * cached and shouldn't be modified.
          * 
-         * @param user The User-object to base this style on
+         * @param user
+         * @param style The style to base it on, or {@code null} to create
+         * a style for the nick in front of a chat message
          * @return 
          */
-        public MutableAttributeSet nick(User user, MutableAttributeSet style) {
+        public AttributeSet nick(User user, MutableAttributeSet style) {
+            Color color = user.getColor();
+            boolean changedColor = user.hasChangedColor();
+            NickStyles cached = nickStyles.get(user);
+            if (cached == null || !cached.isValid(color, changedColor)) {
+                cached = new NickStyles(color, changedColor);
+                nickStyles.put(user, cached);
+            }
+            AttributeSet result = cached.get(style);
+            if (result == null) {
+                result = createNickStyle(user, color, changedColor, style);
+                cached.put(style, result);
+            }
+            return result;
+        }
+        
+        private AttributeSet createNickStyle(User user, Color userColor,
+                boolean changedColor, MutableAttributeSet style) {
             SimpleAttributeSet userStyle;
             if (style == null) {
                 userStyle = new SimpleAttributeSet(nick());
                 userStyle.addAttribute(CHATTY_USER_MESSAGE, true);
-                Color userColor = user.getColor();
-                if (!user.hasChangedColor()) {
-                    userColor = HtmlColors.correctReadability(userColor, getBackground());
+                if (!changedColor) {
+                    userColor = correctReadability(userColor);
                     user.setCorrectedColor(userColor);
                 }
                 StyleConstants.setForeground(userStyle, userColor);
@@ -1387,6 +1834,24 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
             return userStyle;
         }
         
+        /**
+         * Corrects the color for readability on the current background.
+         * 
+         * @param color
+         * @return 
+         */
+        private Color correctReadability(Color color) {
+            Color corrected = correctedColors.get(color);
+            if (corrected == null) {
+                if (correctedColors.size() > CORRECTED_COLORS_MAX) {
+                    correctedColors.clear();
+                }
+                corrected = HtmlColors.correctReadability(color, getBackground());
+                correctedColors.put(color, corrected);
+            }
+            return corrected;
+        }
+        
         public MutableAttributeSet subscriberIcon() {
             return styles.get("subscriber");
         }
@@ -1453,16 +1918,23 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         }
         
         /**
-         * Make a style with the given icon.
+         * Make a style with the given icon. The styles are cached and
+         * shouldn't be modified.
          * 
+         * @param emoticon
          * @param icon
          * @return 
          */
-        public MutableAttributeSet emoticon(Emoticon emoticon) {
+        public AttributeSet emoticon(Emoticon emoticon, ImageIcon icon) {
+            AttributeSet cached = emoticonStyles.get(emoticon);
+            if (cached != null && StyleConstants.getIcon(cached) == icon) {
+                return cached;
+            }
             // Does this need any other attributes e.g. standard?
             SimpleAttributeSet emoteStyle = new SimpleAttributeSet();
-            StyleConstants.setIcon(emoteStyle, emoticon.getIcon(ChannelTextPane.this));
+            StyleConstants.setIcon(emoteStyle, icon);
             emoteStyle.addAttribute(CHATTY_EMOTICON, emoticon);
+            emoticonStyles.put(emoticon, emoteStyle);
             return emoteStyle;
         }
         
@@ -1479,15 +1951,27 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
 }
 
 /**
- * Adds a way to refresh the (whole) document.
+ * Adds a way to refresh the document (or parts of it) and to add several
+ * lines at once.
  * 
- * This is currently used to display Icons after they are fully loaded, although
- * there should be a better way to do this.
+ * Refreshing is currently used to display Icons after they are fully loaded,
+ * although there should be a better way to do this.
  * 
  * @author tduva
  */
 class MyDocument extends DefaultStyledDocument {
     
+    /**
+     * Adds the content and structure described by the specs to the end of the
+     * document, in one edit.
+     * 
+     * @param specs
+     * @throws BadLocationException 
+     */
+    public void append(ElementSpec[] specs) throws BadLocationException {
+        insert(getLength(), specs);
+    }
+    
     public void refresh() {
         refresh(0, getLength());
     }
@@ -1544,12 +2028,42 @@ class MyEditorKit extends StyledEditorKit {
  * Changes the FlowStrategy to increase performance when i18n is enabled in the
  * Document. Not quite sure why this works.. ;)
  * 
+ * Also only wraps the line again (e.g. when the width changed) if it is
+ * visible or close to it. Otherwise the new height is estimated and the line
+ * is actually layed out once it gets close to the visible area (see
+ * {@link ChatBoxView#layoutNearlyVisible()}) or a position is requested.
+ * 
  * @author tduva
  */
 class MyParagraphView extends ParagraphView {
     
     public static int MAX_VIEW_SIZE = 50;
     
+    /**
+     * How many heights (for different widths) are remembered.
+     */
+    private static final int HEIGHT_CACHE_SIZE = 4;
+    
+    private final int[] cachedWidths = new int[HEIGHT_CACHE_SIZE];
+    private final float[] cachedHeights = new float[HEIGHT_CACHE_SIZE];
+    private int nextCached;
+    
+    /**
+     * Width of the whole text without wrapping (only determined when needed,
+     * -1 if unknown) and height of a single row, from the last actual layout.
+     */
+    private float contentWidth = -1;
+    private float rowHeight;
+    
+    /**
+     * Whether the layout is currently delayed, in which case the estimated
+     * height is used and the size to use for the layout is remembered.
+     */
+    private boolean delayed;
+    private float delayedWidth;
+    private float delayedHeight;
+    private float estimatedHeight;
+    
     public MyParagraphView(Element elem) {
         super(elem);
         //System.out.println(strategy.getClass());
@@ -1570,6 +2084,148 @@ class MyParagraphView extends ParagraphView {
         }
     }
     
+    @Override
+    public void setSize(float width, float height) {
+        int innerWidth = (int)(width - getLeftInset() - getRightInset());
+        if (!isLayoutValid(X_AXIS)) {
+            // Content may have changed, so previous heights aren't valid
+            Arrays.fill(cachedHeights, 0);
+            contentWidth = -1;
+        }
+        boolean reflow = innerWidth != layoutSpan || !isLayoutValid(X_AXIS);
+        if (reflow && getViewCount() > 0 && !isNearlyVisible()) {
+            // Has been layed out before, but isn't visible, so delay
+            float oldHeight = getPreferredSpan(Y_AXIS);
+            delayed = true;
+            delayedWidth = width;
+            delayedHeight = height;
+            estimatedHeight = estimateHeight(innerWidth);
+            if (estimatedHeight != oldHeight && getParent() != null) {
+                getParent().preferenceChanged(this, false, true);
+            }
+            return;
+        }
+        delayed = false;
+        super.setSize(width, height);
+        if (reflow) {
+            remember();
+        }
+    }
+    
+    /**
+     * Performs the layout, if it was delayed.
+     * 
+     * @return true if the layout was delayed, false otherwise
+     */
+    boolean ensureLayout() {
+        if (delayed) {
+            delayed = false;
+            float oldHeight = estimatedHeight;
+            super.setSize(delayedWidth, delayedHeight);
+            remember();
+            if (getPreferredSpan(Y_AXIS) != oldHeight && getParent() != null) {
+                getParent().preferenceChanged(this, false, true);
+            }
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Remembers the current size, for estimating the height later.
+     */
+    private void remember() {
+        float height = super.getPreferredSpan(Y_AXIS);
+        cachedWidths[nextCached] = layoutSpan;
+        cachedHeights[nextCached] = height;
+        nextCached = (nextCached + 1) % HEIGHT_CACHE_SIZE;
+        if (getViewCount() > 0) {
+            rowHeight = height / getViewCount();
+        }
+        contentWidth = -1;
+    }
+    
+    /**
+     * Gets the height for the given width, either from a previous layout with
+     * that width or estimated based on the last layout.
+     * 
+     * @param width
+     * @return 
+     */
+    private float estimateHeight(int width) {
+        for (int i=0;i<HEIGHT_CACHE_SIZE;i++) {
+            if (cachedWidths[i] == width && cachedHeights[i] > 0) {
+                return cachedHeights[i];
+            }
+        }
+        if (contentWidth < 0) {
+            contentWidth = layoutPool.getPreferredSpan(X_AXIS);
+        }
+        int rows = 1;
+        if (width > 0) {
+            rows = Math.max(1, (int)Math.ceil(contentWidth / width));
+        }
+        return rows * rowHeight + getTopInset() + getBottomInset();
+    }
+    
+    private boolean isNearlyVisible() {
+        View parent = getParent();
+        if (parent instanceof ChatBoxView) {
+            return ((ChatBoxView)parent).isNearlyVisible(this);
+        }
+        return true;
+    }
+    
+    @Override
+    public float getPreferredSpan(int axis) {
+        if (delayed && axis == Y_AXIS) {
+            return estimatedHeight;
+        }
+        return super.getPreferredSpan(axis);
+    }
+    
+    @Override
+    public float getMinimumSpan(int axis) {
+        if (delayed && axis == Y_AXIS) {
+            return estimatedHeight;
+        }
+        return super.getMinimumSpan(axis);
+    }
+    
+    @Override
+    public float getMaximumSpan(int axis) {
+        if (delayed && axis == Y_AXIS) {
+            return estimatedHeight;
+        }
+        return super.getMaximumSpan(axis);
+    }
+    
+    @Override
+    public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+        ensureLayout();
+        return super.modelToView(pos, a, b);
+    }
+    
+    @Override
+    public Shape modelToView(int p0, Position.Bias b0, int p1, Position.Bias b1,
+            Shape a) throws BadLocationException {
+        ensureLayout();
+        return super.modelToView(p0, b0, p1, b1, a);
+    }
+    
+    @Override
+    public int viewToModel(float x, float y, Shape a, Position.Bias[] bias) {
+        ensureLayout();
+        return super.viewToModel(x, y, a, bias);
+    }
+    
+    @Override
+    public int getNextVisualPositionFrom(int pos, Position.Bias b, Shape a,
+            int direction, Position.Bias[] biasRet) throws BadLocationException {
+        ensureLayout();
+        return super.getNextVisualPositionFrom(pos, b, a, direction, biasRet);
+    }
+    
 //    @Override
 //    public int getResizeWeight(int axis) {
 //        return 0;
@@ -1606,6 +2262,85 @@ class ChatBoxView extends BoxView {
         }
 
     }
+    
+    /**
+     * Checks if the given child view is within the visible area of the text
+     * pane, or at most one visible height away from it, based on the current
+     * layout.
+     * 
+     * @param child
+     * @return 
+     */
+    public boolean isNearlyVisible(View child) {
+        Container c = getContainer();
+        if (c == null) {
+            return true;
+        }
+        Rectangle visible = ((JComponent)c).getVisibleRect();
+        if (visible.isEmpty()) {
+            return false;
+        }
+        int index = getViewIndex(child.getStartOffset(), Position.Bias.Forward);
+        if (index < 0 || index >= getViewCount() || getView(index) != child) {
+            return true;
+        }
+        int y = c.getInsets().top + getTopInset() + getOffset(Y_AXIS, index);
+        int height = getSpan(Y_AXIS, index);
+        return y + height >= visible.y - visible.height
+                && y <= visible.y + visible.height * 2;
+    }
+    
+    /**
+     * Performs the delayed layout of all child views that are nearly visible
+     * (as in {@link #isNearlyVisible(View)}). This should be called when the
+     * visible area changed, so the layout isn't changed while painting.
+     * 
+     * @return The change in height of the child views that have been layed
+     * out and are completely above the visible area
+     */
+    public int layoutNearlyVisible() {
+        Container c = getContainer();
+        if (c == null) {
+            return 0;
+        }
+        Rectangle visible = ((JComponent)c).getVisibleRect();
+        if (visible.isEmpty()) {
+            return 0;
+        }
+        int top = c.getInsets().top + getTopInset();
+        int start = visible.y - visible.height;
+        int end = visible.y + visible.height * 2;
+        
+        // Find the first child that ends within the area
+        int count = getViewCount();
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) / 2;
+            if (top + getOffset(Y_AXIS, mid) + getSpan(Y_AXIS, mid) < start) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        
+        int changeAbove = 0;
+        for (int i = low; i < count; i++) {
+            int y = top + getOffset(Y_AXIS, i);
+            if (y > end) {
+                break;
+            }
+            View child = getView(i);
+            if (child instanceof MyParagraphView) {
+                int oldHeight = getSpan(Y_AXIS, i);
+                if (((MyParagraphView)child).ensureLayout()
+                        && y + oldHeight <= visible.y) {
+                    changeAbove += (int)child.getPreferredSpan(Y_AXIS) - oldHeight;
+                }
+            }
+        }
+        return changeAbove;
+    }
 }    
 
 /**
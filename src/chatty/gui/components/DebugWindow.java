@@ -23,6 +23,8 @@ public class DebugWindow extends JFrame {
     
     private final JCheckBox autoscroll = new JCheckBox("Autoscroll", true);
     private final JCheckBox logIrc = new JCheckBox("Irc log", false);
+    private final JLabel latency = new JLabel("Latency: -");
+    private final JLabel ingest = new JLabel();
     private final JTextArea text;
     private final JTextArea textIrcLog;
     
@@ -59,10 +61,15 @@ public class DebugWindow extends JFrame {
         JPanel settingsPanel = new JPanel();
         settingsPanel.add(autoscroll);
         settingsPanel.add(logIrc);
+        settingsPanel.add(latency);
+        
+        JPanel bottom = new JPanel(new BorderLayout());
+        bottom.add(settingsPanel, BorderLayout.CENTER);
+        bottom.add(ingest, BorderLayout.SOUTH);
         
         // Add everything
         add(tabs, BorderLayout.CENTER);
-        add(settingsPanel, BorderLayout.SOUTH);
+        add(bottom, BorderLayout.SOUTH);
 
         pack();
         
@@ -126,6 +133,24 @@ public class DebugWindow extends JFrame {
         }
    }
 
+    /**
+     * Shows the given latency stats.
+     * 
+     * @param stats 
+     */
+    public void setLatencyStats(String stats) {
+        latency.setText(stats);
+    }
+
+    /**
+     * Shows the given stats of the queue of GUI updates.
+     * 
+     * @param stats 
+     */
+    public void setIngestStats(String stats) {
+        ingest.setText(stats);
+    }
+
     public JCheckBox getLogIrcCheckBox() {
         return logIrc;
     }
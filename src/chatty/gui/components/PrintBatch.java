@@ -0,0 +1,176 @@
+
+package chatty.gui.components;
+
+import chatty.User;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.DefaultStyledDocument.ElementSpec;
+import javax.swing.text.StyleConstants;
+
+/**
+ * Collects the text that is printed, so it can be added to the document all
+ * at once, instead of changing the document (and updating the layout) for
+ * every part of every message.
+ *
+ * @author tduva
+ */
+class PrintBatch {
+
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * The style and end of each part of the text, where parts with equal
+     * styles that follow each other are combined (except for icons).
+     */
+    private final List<AttributeSet> runStyles = new ArrayList<>();
+    private final List<Integer> runEnds = new ArrayList<>();
+
+    /**
+     * Users whose messages are in the text, with an index within their line.
+     */
+    private final List<User> users = new ArrayList<>();
+    private final List<Integer> userIndices = new ArrayList<>();
+
+    public boolean isEmpty() {
+        return text.length() == 0;
+    }
+
+    /**
+     * Adds text in the given style.
+     *
+     * @param added
+     * @param style
+     */
+    public void add(String added, AttributeSet style) {
+        if (added.isEmpty()) {
+            return;
+        }
+        text.append(added);
+        int last = runStyles.size() - 1;
+        // Icons have to stay separate, so each of them is displayed
+        if (last >= 0 && runStyles.get(last).isEqual(style)
+                && StyleConstants.getIcon(style) == null) {
+            runEnds.set(last, text.length());
+        } else {
+            runStyles.add(style);
+            runEnds.add(text.length());
+        }
+    }
+
+    /**
+     * Remembers that the line currently being added is from the given user.
+     *
+     * @param user
+     */
+    public void addUser(User user) {
+        users.add(user);
+        userIndices.add(Math.max(0, text.length() - 1));
+    }
+
+    public int getUserCount() {
+        return users.size();
+    }
+
+    public User getUser(int index) {
+        return users.get(index);
+    }
+
+    /**
+     * Gets the index of the user added at the given position, which is within
+     * the line of the user (relative to the start of the text).
+     *
+     * @param index
+     * @return
+     */
+    public int getUserIndex(int index) {
+        return userIndices.get(index);
+    }
+
+    public String getText() {
+        return text.toString();
+    }
+
+    public boolean startsWithNewline() {
+        return text.length() > 0 && text.charAt(0) == '\n';
+    }
+
+    /**
+     * Gets the number of parts with different styles.
+     *
+     * @return
+     */
+    public int getRunCount() {
+        return runStyles.size();
+    }
+
+    public AttributeSet getRunStyle(int index) {
+        return runStyles.get(index);
+    }
+
+    /**
+     * Gets the start of the part with the given index, relative to the start
+     * of the text.
+     *
+     * @param index
+     * @return
+     */
+    public int getRunStart(int index) {
+        return index == 0 ? 0 : runEnds.get(index - 1);
+    }
+
+    public String getRunText(int index) {
+        return text.substring(getRunStart(index), runEnds.get(index));
+    }
+
+    /**
+     * Creates the specs to add the text to the end of a document, where it
+     * continues the last paragraph (which may not be empty and must not end
+     * with a newline before the implied one).
+     *
+     * @param paragraph The attributes for new paragraphs
+     * @return
+     */
+    public ElementSpec[] createSpecs(AttributeSet paragraph) {
+        char[] chars = new char[text.length()];
+        text.getChars(0, chars.length, chars, 0);
+        List<ElementSpec> result = new ArrayList<>();
+        ElementSpec lastStart = null;
+        int start = 0;
+        for (int i=0;i<runStyles.size();i++) {
+            AttributeSet style = runStyles.get(i);
+            int end = runEnds.get(i);
+            int lineStart = start;
+            for (int pos=start;pos<end;pos++) {
+                if (chars[pos] == '\n') {
+                    result.add(new ElementSpec(style, ElementSpec.ContentType,
+                            chars, lineStart, pos + 1 - lineStart));
+                    result.add(new ElementSpec(null, ElementSpec.EndTagType));
+                    lastStart = new ElementSpec(paragraph, ElementSpec.StartTagType);
+                    result.add(lastStart);
+                    lineStart = pos + 1;
+                }
+            }
+            if (lineStart < end) {
+                result.add(new ElementSpec(style, ElementSpec.ContentType,
+                        chars, lineStart, end - lineStart));
+            }
+            start = end;
+        }
+        if (lastStart != null) {
+            // The remaining part of the last paragraph (the implied newline)
+            // becomes part of the last new paragraph
+            lastStart.setDirection(ElementSpec.JoinFractureDirection);
+        }
+        return result.toArray(new ElementSpec[result.size()]);
+    }
+
+    public void clear() {
+        text.setLength(0);
+        runStyles.clear();
+        runEnds.clear();
+        users.clear();
+        userIndices.clear();
+    }
+
+}
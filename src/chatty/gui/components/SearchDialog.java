@@ -50,7 +50,9 @@ public class SearchDialog extends JDialog {
 
             @Override
             public void actionPerformed(ActionEvent e) {
-                if (!g.search(searchText.getText())) {
+                // Shift searches newer lines instead of older ones
+                boolean older = (e.getModifiers() & ActionEvent.SHIFT_MASK) == 0;
+                if (!g.search(searchText.getText(), older)) {
                     searchText.setBackground(COLOR_NO_RESULT);
                     timer.restart();
                 }
@@ -58,6 +60,7 @@ public class SearchDialog extends JDialog {
         };
         searchText.addActionListener(listener);
         searchButton.addActionListener(listener);
+        searchText.setToolTipText("Enter to search older lines, Shift+Enter to search newer lines");
         
         GridBagConstraints gbc = new GridBagConstraints();
         gbc.gridx = 0;
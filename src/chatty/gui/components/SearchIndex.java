@@ -0,0 +1,304 @@
+
+package chatty.gui.components;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the lines in a chat buffer by the groups of three characters
+ * (trigrams) they contain, so lines that may contain a search text can be
+ * found without going through all lines.
+ *
+ * Lines are added at the end and removed from the start, just like in the
+ * chat buffer. The index in the chat buffer is the line number minus the
+ * number of the first line, so the numbers stay valid when lines are removed.
+ *
+ * @author tduva
+ */
+class SearchIndex {
+
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * Line numbers (ascending) by trigram.
+     */
+    private final Map<Long, LineList> grams = new HashMap<>();
+
+    /**
+     * The trigrams each line in the index was added with (including those of
+     * previous texts of the line), so they can be removed with the line.
+     */
+    private final List<long[]> lineGrams = new ArrayList<>();
+
+    /**
+     * The number of the first line still in the index.
+     */
+    private long firstLine;
+
+    /**
+     * How many lines are in the index.
+     */
+    private int count;
+
+    /**
+     * The number of lines in the index, which are the first lines of the chat
+     * buffer.
+     *
+     * @return
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the line number for the given index in the chat buffer.
+     *
+     * @param index
+     * @return
+     */
+    public long getLineNumber(int index) {
+        return firstLine + index;
+    }
+
+    /**
+     * Gets the index in the chat buffer for the given line number.
+     *
+     * @param lineNumber
+     * @return The index, or -1 if the line isn't in the index anymore
+     */
+    public int getIndex(long lineNumber) {
+        long index = lineNumber - firstLine;
+        if (index < 0 || index >= count) {
+            return -1;
+        }
+        return (int)index;
+    }
+
+    /**
+     * Adds the next line.
+     *
+     * @param text The text of the line, already lowercase
+     */
+    public void add(String text) {
+        long[] added = toArray(getGrams(text));
+        addGrams(firstLine + count, added);
+        lineGrams.add(added);
+        count++;
+    }
+
+    /**
+     * Adds the changed text of a line that is already in the index. The
+     * previous text stays in the index as well (until the line is removed),
+     * since the search results are checked anyway.
+     *
+     * @param index The index in the chat buffer
+     * @param text The text of the line, already lowercase
+     */
+    public void update(int index, String text) {
+        if (index >= 0 && index < count) {
+            Set<Long> added = getGrams(text);
+            addGrams(firstLine + index, toArray(added));
+            for (long gram : lineGrams.get(index)) {
+                added.add(gram);
+            }
+            lineGrams.set(index, toArray(added));
+        }
+    }
+
+    /**
+     * Removes the first lines.
+     *
+     * @param amount How many lines to remove
+     */
+    public void removeFirst(int amount) {
+        amount = Math.min(amount, count);
+        long newFirstLine = firstLine + amount;
+        for (int i=0;i<amount;i++) {
+            for (long gram : lineGrams.get(i)) {
+                LineList lines = grams.get(gram);
+                if (lines != null) {
+                    lines.removeBelow(newFirstLine);
+                    if (lines.isEmpty()) {
+                        grams.remove(gram);
+                    }
+                }
+            }
+        }
+        lineGrams.subList(0, amount).clear();
+        firstLine = newFirstLine;
+        count -= amount;
+    }
+
+    /**
+     * Removes all lines. New lines get new line numbers.
+     */
+    public void clear() {
+        grams.clear();
+        lineGrams.clear();
+        firstLine += count;
+        count = 0;
+    }
+
+    /**
+     * Gets the lines that may contain the search text, which still have to be
+     * checked if they actually contain it.
+     *
+     * @param search The text to search for, already lowercase
+     * @return The indices of the lines in the chat buffer (ascending), or
+     * {@code null} if the search text is too short to use the index
+     */
+    public int[] getCandidates(String search) {
+        if (search.length() < GRAM_LENGTH) {
+            return null;
+        }
+        // Start with the trigram with the fewest lines
+        List<LineList> lists = new ArrayList<>();
+        LineList smallest = null;
+        for (long gram : getGrams(search)) {
+            LineList lines = grams.get(gram);
+            if (lines == null) {
+                return new int[0];
+            }
+            lists.add(lines);
+            if (smallest == null || lines.size() < smallest.size()) {
+                smallest = lines;
+            }
+        }
+        int[] result = new int[smallest.size()];
+        int resultCount = 0;
+        for (int i=0;i<smallest.size();i++) {
+            long line = smallest.get(i);
+            boolean inAll = true;
+            for (LineList lines : lists) {
+                if (lines != smallest && !lines.contains(line)) {
+                    inAll = false;
+                    break;
+                }
+            }
+            if (inAll) {
+                int index = getIndex(line);
+                if (index != -1) {
+                    result[resultCount++] = index;
+                }
+            }
+        }
+        return Arrays.copyOf(result, resultCount);
+    }
+
+    private void addGrams(long line, long[] added) {
+        for (long gram : added) {
+            LineList lines = grams.get(gram);
+            if (lines == null) {
+                lines = new LineList();
+                grams.put(gram, lines);
+            }
+            lines.add(line);
+        }
+    }
+
+    private static long[] toArray(Set<Long> values) {
+        long[] result = new long[values.size()];
+        int i = 0;
+        for (long value : values) {
+            result[i++] = value;
+        }
+        return result;
+    }
+
+    private static Set<Long> getGrams(String text) {
+        Set<Long> result = new HashSet<>();
+        for (int i=0;i+GRAM_LENGTH<=text.length();i++) {
+            result.add(((long)text.charAt(i) << 32)
+                    | ((long)text.charAt(i+1) << 16)
+                    | text.charAt(i+2));
+        }
+        return result;
+    }
+
+    /**
+     * A sorted list of line numbers, that are usually added at the end and
+     * removed from the start.
+     */
+    private static class LineList {
+
+        private long[] values = new long[2];
+        private int start;
+        private int end;
+
+        public int size() {
+            return end - start;
+        }
+
+        public boolean isEmpty() {
+            return start == end;
+        }
+
+        public long get(int index) {
+            return values[start + index];
+        }
+
+        /**
+         * Adds the value at the correct position, if it isn't already in the
+         * list.
+         *
+         * @param value
+         */
+        public void add(long value) {
+            if (!isEmpty() && values[end - 1] >= value) {
+                int pos = Arrays.binarySearch(values, start, end, value);
+                if (pos >= 0) {
+                    return;
+                }
+                insert(-pos - 1 - start, value);
+                return;
+            }
+            ensureCapacity();
+            values[end++] = value;
+        }
+
+        /**
+         * Inserts the value at the given position (relative to the start).
+         */
+        private void insert(int index, long value) {
+            ensureCapacity();
+            int pos = start + index;
+            System.arraycopy(values, pos, values, pos + 1, end - pos);
+            values[pos] = value;
+            end++;
+        }
+
+        private void ensureCapacity() {
+            if (end == values.length) {
+                if (start > values.length / 2) {
+                    // Enough space at the start, so just move
+                    System.arraycopy(values, start, values, 0, size());
+                } else {
+                    values = Arrays.copyOfRange(values, start, values.length * 2);
+                }
+                end -= start;
+                start = 0;
+            }
+        }
+
+        public boolean contains(long value) {
+            return Arrays.binarySearch(values, start, end, value) >= 0;
+        }
+
+        /**
+         * Removes all values smaller than the given one.
+         *
+         * @param value
+         */
+        public void removeBelow(long value) {
+            while (start < end && values[start] < value) {
+                start++;
+            }
+        }
+    }
+
+}
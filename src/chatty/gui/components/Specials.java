@@ -0,0 +1,183 @@
+
+package chatty.gui.components;
+
+import chatty.User;
+import chatty.util.api.Emoticon;
+import chatty.util.api.EmoticonIndex;
+import chatty.util.api.Emoticons;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The special stuff in a message (links and emoticons) that should be printed
+ * differently, found in a way that stuff doesn't overlap with previously
+ * found stuff.
+ *
+ * This doesn't access any GUI stuff, so it can be created outside of the EDT
+ * and then be given to the text pane for printing.
+ *
+ * @author tduva
+ */
+public class Specials {
+
+    private static final String URL_REGEX =
+            "(?i)\\b(?:(?:https?)://|www\\.)[-A-Z0-9+&@#/%=~_|$?!:,.]*[A-Z0-9+&@#/%=~_|$]";
+
+    private static final Pattern URL_PATTERN = Pattern.compile(URL_REGEX);
+
+    /**
+     * Where stuff was found (start and end index, both inclusive).
+     */
+    private final TreeMap<Integer, Integer> ranges = new TreeMap<>();
+
+    /**
+     * What was found (the url String or the Emoticon).
+     */
+    private final Map<Integer, Object> found = new HashMap<>();
+
+    /**
+     * Finds the links and emoticons in the given text.
+     *
+     * @param text The text to search in
+     * @param user The user who send the text, to check for which emoticons
+     * are available
+     * @param emoticons The emoticons, or {@code null} if no emoticons should
+     * be searched for
+     * @return
+     */
+    public static Specials find(String text, User user, Emoticons emoticons) {
+        Specials result = new Specials();
+        result.findLinks(text);
+        if (emoticons != null) {
+            result.findEmoticons(text, user, emoticons);
+        }
+        return result;
+    }
+
+    private void findLinks(String text) {
+        Matcher m = URL_PATTERN.matcher(text);
+        while (m.find()) {
+            int start = m.start();
+            int end = m.end() - 1;
+            if (!inRanges(start) && !inRanges(end)) {
+                String foundUrl = m.group();
+                if (checkUrl(foundUrl)) {
+                    ranges.put(start, end);
+                    found.put(start, foundUrl);
+                }
+            }
+        }
+    }
+
+    private void findEmoticons(String text, User user, Emoticons emoticons) {
+        for (Integer set : user.getEmoteSet()) {
+            findEmoticons(emoticons.getEmoticonIndex(set), text);
+        }
+        findEmoticons(emoticons.getEmoticonIndex(), text);
+        findEmoticons(emoticons.getEmoticonIndex(null), text);
+        findEmoticons(emoticons.getEmoticonIndex(user.getStream()), text);
+    }
+
+    /**
+     * Finds the emoticons of the given index in the text.
+     *
+     * The range is reserved without getting the icon first, since that
+     * registers the text pane as user of the emoticon and may start loading
+     * the image, which shouldn't be done outside of the EDT. This is fine
+     * because {@link Emoticon#getIcon(Emoticon.EmoticonUser)} always returns
+     * at least a placeholder icon. If it ever returned {@code null}, the
+     * emoticon would be printed as regular text, but nothing else would be
+     * found in that range.
+     *
+     * @param index
+     * @param text
+     */
+    private void findEmoticons(EmoticonIndex index, String text) {
+        index.find(text, new EmoticonIndex.MatchListener() {
+
+            @Override
+            public void found(int start, int end, Emoticon emoticon) {
+                // Add it's position if it doesn't overlap with something
+                // already found
+                if (!inRanges(start) && !inRanges(end)) {
+                    ranges.put(start, end);
+                    Specials.this.found.put(start, emoticon);
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks if the given integer is within any of the found ranges
+     * (inclusive).
+     *
+     * @param i
+     * @return
+     */
+    private boolean inRanges(int i) {
+        Iterator<Entry<Integer, Integer>> rangesIt = ranges.entrySet().iterator();
+        while (rangesIt.hasNext()) {
+            Entry<Integer, Integer> range = rangesIt.next();
+            if (i >= range.getKey() && i <= range.getValue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the Url can be later used as a URI.
+     *
+     * @param uriToCheck
+     * @return
+     */
+    private static boolean checkUrl(String uriToCheck) {
+        try {
+            new URI(uriToCheck);
+        } catch (URISyntaxException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The ranges of the found stuff, sorted by start index.
+     *
+     * @return A {@code Map} of start index to end index (inclusive)
+     */
+    public Map<Integer, Integer> getRanges() {
+        return Collections.unmodifiableMap(ranges);
+    }
+
+    /**
+     * Gets the url found at the given start index.
+     *
+     * @param start
+     * @return The url, or {@code null} if there is no url at that index
+     */
+    public String getUrl(int start) {
+        Object result = found.get(start);
+        return result instanceof String ? (String)result : null;
+    }
+
+    /**
+     * Gets the emoticon found at the given start index.
+     *
+     * @param start
+     * @return The {@code Emoticon}, or {@code null} if there is no emoticon
+     * at that index
+     */
+    public Emoticon getEmoticon(int start) {
+        Object result = found.get(start);
+        return result instanceof Emoticon ? (Emoticon)result : null;
+    }
+
+}
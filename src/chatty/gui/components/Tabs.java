@@ -226,6 +226,13 @@ public class Tabs extends JPanel {
         }
     }
     
+    public void setToolTipForComponent(Component comp, String text) {
+        int index = tabs.indexOfComponent(comp);
+        if (index != -1) {
+            tabs.setToolTipTextAt(index, text);
+        }
+    }
+    
     public void setOrder(int order) {
         this.order = order;
     }
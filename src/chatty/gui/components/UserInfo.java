@@ -12,6 +12,8 @@ import chatty.util.DateTime;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.text.SimpleDateFormat;
@@ -60,6 +62,12 @@ public class UserInfo extends JDialog {
     MainGui owner;
     
     User currentUser;
+    
+    /**
+     * The User that was told that it's used by this dialog, as long as the
+     * dialog is shown.
+     */
+    private User referencedUser;
     String currentChannel;
     private String currentLocalUsername;
     private final ActionListener actionListener;
@@ -89,6 +97,14 @@ public class UserInfo extends JDialog {
         unmodButton.addActionListener(actionListener);
         closeButton.addActionListener(actionListener);
         
+        addComponentListener(new ComponentAdapter() {
+
+            @Override
+            public void componentHidden(ComponentEvent e) {
+                releaseUser();
+            }
+        });
+        
         
         
         
@@ -294,6 +310,12 @@ public class UserInfo extends JDialog {
     }
     
     public void setUser(User user, String localUsername) {
+        if (referencedUser != user) {
+            // Keep the User while it's shown
+            releaseUser();
+            user.addReference();
+            referencedUser = user;
+        }
         currentUser = user;
         currentLocalUsername = localUsername;
         
@@ -407,6 +429,16 @@ public class UserInfo extends JDialog {
         }
     }
     
+    /**
+     * Tells the current User that it's not used by this dialog anymore.
+     */
+    private void releaseUser() {
+        if (referencedUser != null) {
+            referencedUser.removeReference();
+            referencedUser = null;
+        }
+    }
+    
     public User getUser() {
         return currentUser;
     }
@@ -10,6 +10,8 @@ import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 import javax.swing.JList;
 
 /**
@@ -19,6 +21,12 @@ import javax.swing.JList;
 public class UserList extends JList<User> {
     
     private final UserlistModel<User> data;
+    
+    /**
+     * The users currently in the list, to quickly check if a user is already
+     * added.
+     */
+    private final Set<User> added = new HashSet<>();
     private final ContextMenuListener contextMenuListener;
     private final UserListener userListener;
     
@@ -57,23 +65,34 @@ public class UserList extends JList<User> {
         this.userListener = userListener;
     }
     
+    /**
+     * Adds the user, unless already in the list.
+     * 
+     * @param user 
+     */
     public void addUser(User user) {
-        data.add(user);
+        if (added.add(user)) {
+            data.add(user);
+        }
     }
     
     public void removeUser(User user) {
-        data.remove(user);
+        if (added.remove(user)) {
+            data.remove(user);
+        }
     }
     
     public void updateUser(User user) {
         data.remove(user);
         data.add(user);
+        added.add(user);
         //TODO: this didnt sort the user correctly after opping, maybe it can be fixed?
         //userlistData.updated(user);
     }
     
     public void clearUsers() {
         data.clear();
+        added.clear();
     }
     
     public int getNumUsers() {
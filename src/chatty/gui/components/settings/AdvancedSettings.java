@@ -34,6 +34,12 @@ public class AdvancedSettings extends SettingsPanel {
         
         connection.add(new JLabel("(These might be overridden by commandline parameters.)"), d.makeGbc(0, 2, 2, 1));
         
+        connection.add(new JLabel("Channels per connection:"), d.makeGbc(0, 3, 1, 1, GridBagConstraints.EAST));
+        connection.add(d.addSimpleLongSetting("channelsPerConnection", 3, true), d.makeGbc(1, 3, 1, 1, GridBagConstraints.WEST));
+        
+        connection.add(new JLabel("Ping timeout (seconds):"), d.makeGbc(0, 4, 1, 1, GridBagConstraints.EAST));
+        connection.add(d.addSimpleLongSetting("pingTimeout", 3, true), d.makeGbc(1, 4, 1, 1, GridBagConstraints.WEST));
+        
         JPanel other = addTitledPanel("Other", 2);
         
         other.add(d.addBooleanSetting("ignoreJoinsParts", "Ignore joins/parts", "Only users who talked appear in the userlist, no joins/parts shown."),
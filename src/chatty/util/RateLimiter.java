@@ -0,0 +1,143 @@
+package chatty.util;
+
+/**
+ * Limits how many actions are allowed in a sliding time window (e.g. 18 lines
+ * in 30 seconds). The times of the last actions (up to the limit) are kept,
+ * and another action is only allowed once the oldest of those is at least the
+ * interval old, so there are never more actions than the limit in any window
+ * of that length.
+ *
+ * @author tduva
+ */
+public class RateLimiter {
+
+    /**
+     * The times of the last actions, as a ring starting at {@code start} with
+     * {@code count} entries, from oldest to newest.
+     */
+    private long[] times = new long[0];
+    private int start;
+    private int count;
+
+    private int limit;
+    private long interval;
+
+    /**
+     * Creates a new limiter. If either the limit or the interval is 0, then
+     * actions are not limited.
+     *
+     * @param limit How many actions are allowed in the interval
+     * @param interval The length of the interval in milliseconds
+     */
+    public RateLimiter(int limit, long interval) {
+        setLimit(limit, interval);
+    }
+
+    /**
+     * Changes the limit. The times of previous actions are kept (as far as
+     * they fit into the new limit), so changing the limit doesn't allow
+     * another full burst of actions.
+     *
+     * @param limit How many actions are allowed in the interval
+     * @param interval The length of the interval in milliseconds
+     */
+    public synchronized void setLimit(int limit, long interval) {
+        this.limit = limit;
+        this.interval = interval;
+        int size = Math.max(0, limit);
+        long[] newTimes = new long[size];
+        int keep = Math.min(count, size);
+        for (int i=0;i<keep;i++) {
+            newTimes[i] = get(count - keep + i);
+        }
+        times = newTimes;
+        start = 0;
+        count = keep;
+    }
+
+    /**
+     * Whether actions are limited at all.
+     *
+     * @return false if the limit or interval is 0, true otherwise
+     */
+    public synchronized boolean isEnabled() {
+        return limit > 0 && interval > 0;
+    }
+
+    /**
+     * Records an action at the given time, if it is allowed.
+     *
+     * @param now The current time in milliseconds
+     * @return true if the action is allowed (and has been recorded), false
+     * otherwise
+     */
+    public synchronized boolean tryAcquire(long now) {
+        if (!isEnabled()) {
+            return true;
+        }
+        if (count < limit) {
+            times[(start + count) % times.length] = now;
+            count++;
+            return true;
+        }
+        if (now - times[start] >= interval) {
+            times[start] = now;
+            start = (start + 1) % times.length;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the time until another action is allowed, assuming the given
+     * number of actions are performed before it as soon as they are allowed.
+     *
+     * @param position How many actions are performed before it
+     * @param now The current time in milliseconds
+     * @return The time in milliseconds, 0 if allowed right away
+     */
+    public synchronized long getWaitTime(int position, long now) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        // The action that has to be at least the interval old
+        int index = count + position - limit;
+        long extra = 0;
+        while (index >= count) {
+            // Refers to an action that is performed later as well
+            index -= limit;
+            extra += interval;
+        }
+        if (index < 0) {
+            return extra;
+        }
+        return Math.max(0, get(index) + interval - now) + extra;
+    }
+
+    /**
+     * Gets the number of actions in the current window.
+     *
+     * @param now The current time in milliseconds
+     * @return The number of actions
+     */
+    public synchronized int getCount(long now) {
+        int result = 0;
+        for (int i=0;i<count;i++) {
+            if (now - get(i) < interval) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the time of an action.
+     *
+     * @param index The index, 0 being the oldest action
+     * @return The time in milliseconds
+     */
+    private long get(int index) {
+        return times[(start + index) % times.length];
+    }
+
+}
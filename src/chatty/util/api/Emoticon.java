@@ -36,13 +36,14 @@ public class Emoticon {
     
     private static final Logger LOGGER = Logger.getLogger(Emoticon.class.getName());
     
-    private static final Matcher word = Pattern.compile("[^\\w]").matcher("");
+    private static final Pattern nonWord = Pattern.compile("[^\\w]");
     private static final int MAX_LOADING_ATTEMPTS = 3;
     
     private String search;
+    private String word;
     private String url;
     private ImageIcon icon;
-    private Matcher matcher;
+    private Pattern pattern;
     private int width = 1;
     private int height = 1;
     private final Set<EmoticonUser> users = new HashSet<>();
@@ -53,19 +54,22 @@ public class Emoticon {
     public Emoticon(String search, String url, int width, int height) {
         // Only match at word boundaries, unless there is a character that
         // isn't a word character
-        if (!word.reset(search).find()) {
+        if (!nonWord.matcher(search).find()) {
+            if (!search.isEmpty()) {
+                word = search;
+            }
             search = "\\b"+search+"\\b";
         }
         // Replace &lt; with <
         search = search.replace("\\&lt\\;", "<");
         // Actually compile a Pattern from it
         try {
-            matcher = Pattern.compile(search).matcher("");
+            pattern = Pattern.compile(search);
         } catch (PatternSyntaxException ex) {
             LOGGER.warning("Error compiling pattern for '"+search+"' ["+ex.getLocalizedMessage()+"]");
             // Compile a pattern that doesn't match anything, so a Matcher
             // is still available
-            matcher = Pattern.compile("(?!)").matcher("");
+            pattern = Pattern.compile("(?!)");
         }
         this.search = search;
         this.url = url;
@@ -74,12 +78,29 @@ public class Emoticon {
     }
     
     public boolean matches(String text) {
-        return matcher.reset(text).matches();
-        //return pattern.matcher(text).matches();
+        return pattern.matcher(text).matches();
     }
     
+    /**
+     * Gets the code of this emoticon if it only consists of word characters,
+     * which means it only matches as a whole word and no regex has to be used
+     * to find it.
+     * 
+     * @return The code, or {@code null} if this emoticon is an actual regex
+     */
+    public String getWord() {
+        return word;
+    }
+    
+    /**
+     * Gets a new Matcher for the given text, so this can be used from several
+     * threads at the same time.
+     * 
+     * @param text
+     * @return 
+     */
     public Matcher getMatcher(String text) {
-        return matcher.reset(text);
+        return pattern.matcher(text);
     }
     
     /**
@@ -102,6 +123,16 @@ public class Emoticon {
         return icon;
     }
     
+    /**
+     * Whether the image is currently being loaded, which means the users of
+     * this emoticon will be informed once it is done.
+     * 
+     * @return 
+     */
+    public boolean isLoading() {
+        return loading;
+    }
+    
     /**
      * Try to load the image, if it's not already loading and if the max loading
      * attempts are not exceeded.
@@ -184,7 +215,7 @@ public class Emoticon {
                     icon.setImage(loadedIcon.getImage());
                 }
                 for (EmoticonUser user : users) {
-                    user.iconLoaded();
+                    user.iconLoaded(Emoticon.this);
                 }
                 loading = false;
                 //users.clear();
@@ -204,7 +235,13 @@ public class Emoticon {
     
     public static interface EmoticonUser {
 
-        void iconLoaded();
+        /**
+         * Called when the image of the given emoticon has been loaded (or
+         * failed to load and was replaced by an error image).
+         * 
+         * @param emoticon 
+         */
+        void iconLoaded(Emoticon emoticon);
     }
     
 }
@@ -0,0 +1,205 @@
+
+package chatty.util.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * Finds the emoticons of a set of emoticons in a text, without having to run
+ * the regex of every single emoticon on the text.
+ * 
+ * Most emoticons only consist of word characters and only match as a whole
+ * word, so the words of the text are just looked up by their code. Only the
+ * few emoticons that are actual regex (like ":)") still use their pattern.
+ * 
+ * Matches are reported in the same order as if the regex of each emoticon was
+ * run on the text in the iteration order of the set the index was created
+ * from, so the result is the same when matches are only accepted if they
+ * don't overlap with previous ones.
+ * 
+ * @author tduva
+ */
+public class EmoticonIndex {
+    
+    public static final EmoticonIndex EMPTY =
+            new EmoticonIndex(Collections.<Emoticon>emptySet());
+    
+    /**
+     * Informed about every match, in the order they should be accepted.
+     */
+    public interface MatchListener {
+        
+        /**
+         * An emoticon was found in the text.
+         * 
+         * @param start The start index
+         * @param end The end index (inclusive)
+         * @param emoticon The emoticon
+         */
+        public void found(int start, int end, Emoticon emoticon);
+    }
+    
+    /**
+     * Emoticons that match as a whole word, by their code.
+     */
+    private final Map<String, Entry> words = new HashMap<>();
+    
+    /**
+     * Emoticons that have to be found using their regex.
+     */
+    private final List<Entry> regex = new ArrayList<>();
+    
+    private int minLength = Integer.MAX_VALUE;
+    private int maxLength;
+    
+    public EmoticonIndex(Collection<Emoticon> emoticons) {
+        int order = 0;
+        for (Emoticon emoticon : emoticons) {
+            String word = emoticon.getWord();
+            if (word == null) {
+                regex.add(new Entry(emoticon, order));
+            } else if (!words.containsKey(word)) {
+                // If a code appears more than once, only the first one could
+                // ever be accepted, since the others match at the same place
+                words.put(word, new Entry(emoticon, order));
+                minLength = Math.min(minLength, word.length());
+                maxLength = Math.max(maxLength, word.length());
+            }
+            order++;
+        }
+    }
+    
+    /**
+     * Finds all emoticons in the text.
+     * 
+     * @param text The text to search in
+     * @param listener Informed about every match
+     */
+    public void find(String text, MatchListener listener) {
+        List<Match> matches = findWords(text);
+        
+        // Report word matches and regex matches in the order of the emoticons
+        int m = 0;
+        for (Entry entry : regex) {
+            while (m < matches.size() && matches.get(m).entry.order < entry.order) {
+                matches.get(m++).report(listener);
+            }
+            Matcher matcher = entry.emoticon.getMatcher(text);
+            while (matcher.find()) {
+                listener.found(matcher.start(), matcher.end() - 1, entry.emoticon);
+            }
+        }
+        while (m < matches.size()) {
+            matches.get(m++).report(listener);
+        }
+    }
+    
+    /**
+     * Looks up all words of the text, sorted by the order of the emoticon and
+     * then by position.
+     * 
+     * @param text
+     * @return 
+     */
+    private List<Match> findWords(String text) {
+        List<Match> result = new ArrayList<>();
+        if (words.isEmpty()) {
+            return result;
+        }
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            if (!isWordChar(text.charAt(start))) {
+                start++;
+                continue;
+            }
+            int end = start + 1;
+            while (end < length && isWordChar(text.charAt(end))) {
+                end++;
+            }
+            int wordLength = end - start;
+            if (wordLength >= minLength && wordLength <= maxLength) {
+                Entry entry = words.get(text.substring(start, end));
+                if (entry != null && isWordMatch(entry.emoticon, text, start, end)) {
+                    result.add(new Match(entry, start, end - 1));
+                }
+            }
+            start = end;
+        }
+        Collections.sort(result, MATCH_ORDER);
+        return result;
+    }
+    
+    /**
+     * Checks whether the regex of the emoticon actually matches at this
+     * position, since the word boundary it uses may also consider characters
+     * other than ASCII word characters.
+     */
+    private static boolean isWordMatch(Emoticon emoticon, String text,
+            int start, int end) {
+        Matcher m = emoticon.getMatcher(text);
+        m.region(start, text.length());
+        m.useTransparentBounds(true);
+        return m.lookingAt() && m.end() == end;
+    }
+    
+    /**
+     * Same as \w in regex.
+     * 
+     * @param c
+     * @return 
+     */
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '_';
+    }
+    
+    private static final Comparator<Match> MATCH_ORDER = new Comparator<Match>() {
+
+        @Override
+        public int compare(Match o1, Match o2) {
+            if (o1.entry.order != o2.entry.order) {
+                return o1.entry.order < o2.entry.order ? -1 : 1;
+            }
+            return o1.start < o2.start ? -1 : (o1.start == o2.start ? 0 : 1);
+        }
+    };
+    
+    private static class Entry {
+        
+        private final Emoticon emoticon;
+        
+        /**
+         * The position of the emoticon in the set this was created from.
+         */
+        private final int order;
+        
+        Entry(Emoticon emoticon, int order) {
+            this.emoticon = emoticon;
+            this.order = order;
+        }
+    }
+    
+    private static class Match {
+        
+        private final Entry entry;
+        private final int start;
+        private final int end;
+        
+        Match(Entry entry, int start, int end) {
+            this.entry = entry;
+            this.start = start;
+            this.end = end;
+        }
+        
+        void report(MatchListener listener) {
+            listener.found(start, end, entry.emoticon);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package chatty.util.api;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 
 /**
  * Add emoticons and get a list of them matching a certain emoteset.
@@ -20,6 +21,13 @@ public class Emoticons {
      */
     HashMap<String,HashSet<Emoticon>> otherEmoticons = new HashMap<>();
     
+    /**
+     * Indices to find the emoticons in a text, updated whenever a set of
+     * emoticons is added.
+     */
+    private final Map<Integer,EmoticonIndex> indices = new HashMap<>();
+    private final Map<String,EmoticonIndex> otherIndices = new HashMap<>();
+    
     public Emoticons() {
         
     }
@@ -30,8 +38,11 @@ public class Emoticons {
      * 
      * @param newEmoticons 
      */
-    public void addEmoticons(HashMap<Integer,HashSet<Emoticon>> newEmoticons) {
+    public synchronized void addEmoticons(HashMap<Integer,HashSet<Emoticon>> newEmoticons) {
         emoticons.putAll(newEmoticons);
+        for (Map.Entry<Integer,HashSet<Emoticon>> entry : newEmoticons.entrySet()) {
+            indices.put(entry.getKey(), new EmoticonIndex(entry.getValue()));
+        }
     }
     
     /**
@@ -39,8 +50,11 @@ public class Emoticons {
      * 
      * @param newEmoticons 
      */
-    public void addOtherEmoticons(HashMap<String,HashSet<Emoticon>> newEmoticons) {
+    public synchronized void addOtherEmoticons(HashMap<String,HashSet<Emoticon>> newEmoticons) {
         otherEmoticons.putAll(newEmoticons);
+        for (Map.Entry<String,HashSet<Emoticon>> entry : newEmoticons.entrySet()) {
+            otherIndices.put(entry.getKey(), new EmoticonIndex(entry.getValue()));
+        }
     }
 
     /**
@@ -49,7 +63,7 @@ public class Emoticons {
      * 
      * @return 
      */
-    public HashSet<Emoticon> getEmoticons() {
+    public synchronized HashSet<Emoticon> getEmoticons() {
         HashSet<Emoticon> result = emoticons.get(null);
         if (result == null) {
             result = new HashSet<>();
@@ -63,7 +77,7 @@ public class Emoticons {
      * @param emoteSet
      * @return 
      */
-    public HashSet<Emoticon> getEmoticons(int emoteSet) {
+    public synchronized HashSet<Emoticon> getEmoticons(int emoteSet) {
         HashSet<Emoticon> result = emoticons.get(emoteSet);
         if (result == null) {
             result = new HashSet<>();
@@ -77,11 +91,50 @@ public class Emoticons {
      * @param channel The name of the channel
      * @return 
      */
-    public HashSet<Emoticon> getEmoticons(String channel) {
+    public synchronized HashSet<Emoticon> getEmoticons(String channel) {
         HashSet<Emoticon> result = otherEmoticons.get(channel);
         if (result == null) {
             result = new HashSet<>();
         }
         return result;
     }
+    
+    /**
+     * Gets the index of the emoticons that don't have an emoteset associated
+     * with them.
+     * 
+     * @return 
+     */
+    public synchronized EmoticonIndex getEmoticonIndex() {
+        return getIndex(indices.get(null));
+    }
+    
+    /**
+     * Gets the index of the emoticons that are associated with the given
+     * emoteset.
+     * 
+     * @param emoteSet
+     * @return 
+     */
+    public synchronized EmoticonIndex getEmoticonIndex(int emoteSet) {
+        return getIndex(indices.get(emoteSet));
+    }
+    
+    /**
+     * Gets the index of the emoticons that are associated with the given
+     * channel.
+     * 
+     * @param channel The name of the channel
+     * @return 
+     */
+    public synchronized EmoticonIndex getEmoticonIndex(String channel) {
+        return getIndex(otherIndices.get(channel));
+    }
+    
+    private static EmoticonIndex getIndex(EmoticonIndex index) {
+        if (index == null) {
+            return EmoticonIndex.EMPTY;
+        }
+        return index;
+    }
 }
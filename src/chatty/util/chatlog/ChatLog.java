@@ -117,7 +117,11 @@ public class ChatLog {
     }
     
     private String timestamp() {
-        return DateTime.currentTime(SDF);
+        // SimpleDateFormat isn't thread-safe and messages may be logged from
+        // several threads
+        synchronized(SDF) {
+            return DateTime.currentTime(SDF);
+        }
     }
     
     /**